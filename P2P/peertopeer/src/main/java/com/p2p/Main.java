@@ -4,10 +4,13 @@ import com.p2p.cache.LocalCache;
 import com.p2p.client.ClientGUI;
 import com.p2p.conflict.ConflictRegistry;
 import com.p2p.consensus.ConsensusManager;
+import com.p2p.dht.DhtNode;
+import com.p2p.membership.GossipMembership;
 import com.p2p.metadata.MetadataStore;
 import com.p2p.monitor.Synchronizer;
 import com.p2p.monitor.TTLMonitor;
 import com.p2p.nameserver.NameServer;
+import com.p2p.network.FileStreamMux;
 import com.p2p.network.FileTransferTCP;
 import com.p2p.network.TCPNetworkModule;
 import com.p2p.repository.CopyRepository;
@@ -51,6 +54,30 @@ public class Main {
         networkModule.addListener(nameServer);
         networkModule.addListener(consensus);
 
+        // Índice de nombres distribuido (opcional, -Dp2p.dht=true)
+        DhtNode dht = null;
+        if (DhtNode.ENABLED) {
+            dht = new DhtNode(networkModule, sharedList, logRegistry);
+            networkModule.addListener(dht);
+            nameServer.setDht(dht);
+        }
+
+        // Descargas multiplexadas por la conexión de mensajes (-Dp2p.mux=false para desactivar)
+        if (FileStreamMux.ENABLED) {
+            FileStreamMux mux = new FileStreamMux(networkModule, "shared");
+            networkModule.addListener(mux);
+            FileTransferTCP.setStreamMux(mux);
+        }
+
+        // Membresía por gossip con vista parcial (opcional, -Dp2p.gossip=true)
+        GossipMembership gossip = null;
+        if (GossipMembership.ENABLED) {
+            gossip = new GossipMembership(networkModule, logRegistry);
+            networkModule.addListener(gossip);
+            GossipMembership members = gossip;
+            networkModule.setClusterSizeEstimate(() -> members.getAliveMembers().size());
+        }
+
         // Iniciar servidor de mensajes (puerto 8888)
         networkModule.start();
         System.out.println("✓ Servidor de mensajes en puerto 8888");
@@ -70,6 +97,8 @@ public class Main {
         networkModule.discoverLocalPeers();
 
         nameServer.start();
+        if (dht != null) dht.start();
+        if (gossip != null) gossip.start();
         ttlMonitor.start();
         synchronizer.start();
 
@@ -81,9 +110,12 @@ public class Main {
 
         System.out.println("Nodo P2P inicializado");
 
+        GossipMembership membership = gossip;
         Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            if (membership != null) membership.leave();
             ttlMonitor.stop();
             synchronizer.stop();
+            metadataStore.close();
             FileTransferTCP.stopServer();
             networkModule.shutdown();
             threadManager.shutdown();
@@ -0,0 +1,68 @@
+package com.p2p.cache;
+
+/**
+ * Frecuencia aproximada de acceso por clave (count-min sketch) para la
+ * admisión TinyLFU de LocalCache.
+ *
+ * DEPTH filas de contadores de 0..MAX_COUNT; la frecuencia es el mínimo de
+ * las filas. Cada sampleSize incrementos todos los contadores se dividen
+ * entre 2 para que las claves populares en el pasado pierdan peso.
+ */
+class FrequencySketch {
+
+    private static final int DEPTH = 4;
+    private static final int MAX_COUNT = 15;
+    private static final int[] SEEDS = { 0x9E3779B9, 0x85EBCA6B, 0xC2B2AE35, 0x27D4EB2F };
+
+    private final byte[][] table;
+    private final int mask;
+    private final int sampleSize;
+    private int additions;
+
+    FrequencySketch(int maxEntries) {
+        int width = 16;
+        while (width < maxEntries) width <<= 1;
+        this.table      = new byte[DEPTH][width];
+        this.mask       = width - 1;
+        this.sampleSize = 10 * Math.max(1, maxEntries);
+    }
+
+    void increment(Object key) {
+        int hash = spread(key.hashCode());
+        boolean added = false;
+        for (int i = 0; i < DEPTH; i++) {
+            int idx = index(hash, i);
+            if (table[i][idx] < MAX_COUNT) {
+                table[i][idx]++;
+                added = true;
+            }
+        }
+        if (added && ++additions >= sampleSize) age();
+    }
+
+    int frequency(Object key) {
+        int hash = spread(key.hashCode());
+        int min = MAX_COUNT;
+        for (int i = 0; i < DEPTH; i++)
+            min = Math.min(min, table[i][index(hash, i)]);
+        return min;
+    }
+
+    private void age() {
+        for (byte[] row : table)
+            for (int j = 0; j < row.length; j++)
+                row[j] >>= 1;
+        additions /= 2;
+    }
+
+    private int index(int hash, int row) {
+        int h = (hash ^ SEEDS[row]) * SEEDS[row];
+        return (h ^ (h >>> 16)) & mask;
+    }
+
+    private static int spread(int h) {
+        h ^= h >>> 16;
+        h *= 0x45D9F3B;
+        return h ^ (h >>> 16);
+    }
+}
@@ -1,36 +1,159 @@
 package com.p2p.cache;
 
 import com.p2p.nameserver.NameServer;
-import java.util.concurrent.ConcurrentHashMap;
 
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Caché acotada de resoluciones de nombre (W-TinyLFU).
+ *
+ *   window → LRU pequeña (WINDOW_PERCENT de la capacidad) donde entra todo
+ *   main   → LRU con el resto de la capacidad
+ *
+ * Cuando la ventana se llena, su entrada más antigua compite con la víctima
+ * LRU de main: entra solo si el FrequencySketch la ha visto más veces. Así
+ * una ráfaga de nombres consultados una sola vez no desplaza a los populares.
+ *
+ * Cada entrada caduca según la expiración de su FileInfo (TTL de la respuesta
+ * autoritativa); las caducadas se descartan al leerlas y en cleanup().
+ * Capacidad: -Dp2p.cache.maxEntries (por defecto 10000).
+ */
 public class LocalCache {
-    private final ConcurrentHashMap<String, CacheEntry> cache = new ConcurrentHashMap<>();
 
-    public void put(String key, NameServer.FileInfo value) {
-        cache.put(key, new CacheEntry(value, System.currentTimeMillis() + 3600000));
+    public static final int  DEFAULT_MAX_ENTRIES = Integer.getInteger("p2p.cache.maxEntries", 10_000);
+    /** TTL cuando la respuesta no trae uno (o es TTL=0, "para siempre"). */
+    public static final long DEFAULT_TTL_MS = 3_600_000L;
+    private static final int WINDOW_PERCENT = 1;
+
+    private final int maxEntries;
+    private final int windowMax;
+    private final int mainMax;
+    private final LinkedHashMap<String, CacheEntry> window = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<String, CacheEntry> main   = new LinkedHashMap<>(16, 0.75f, true);
+    private final FrequencySketch sketch;
+
+    // Métricas
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long rejections;
+    private long expirations;
+
+    public LocalCache() {
+        this(DEFAULT_MAX_ENTRIES);
+    }
+
+    public LocalCache(int maxEntries) {
+        this.maxEntries = Math.max(2, maxEntries);
+        this.windowMax  = Math.max(1, this.maxEntries * WINDOW_PERCENT / 100);
+        this.mainMax    = this.maxEntries - windowMax;
+        this.sketch     = new FrequencySketch(this.maxEntries);
     }
 
-    public NameServer.FileInfo get(String key) {
-        CacheEntry entry = cache.get(key);
-        if (entry != null && !entry.isExpired()) {
-            return entry.getValue();
+    /** Guarda la entrada hasta value.getTimestamp() (su expiración). */
+    public synchronized void put(String key, NameServer.FileInfo value) {
+        sketch.increment(key);
+        CacheEntry entry = new CacheEntry(value, value.getTimestamp());
+        if (main.containsKey(key)) {
+            main.put(key, entry);
+            return;
         }
-        return null;
+        window.put(key, entry);
+        if (window.size() > windowMax) admitFromWindow();
+    }
+
+    public synchronized NameServer.FileInfo get(String key) {
+        sketch.increment(key);
+        CacheEntry entry = window.get(key);
+        if (entry == null) entry = main.get(key);
+        if (entry == null) {
+            misses++;
+            return null;
+        }
+        if (entry.isExpired()) {
+            remove(key);
+            expirations++;
+            misses++;
+            return null;
+        }
+        hits++;
+        return entry.getValue();
+    }
+
+    public synchronized void remove(String key) {
+        if (window.remove(key) == null) main.remove(key);
     }
 
-    public void remove(String key) {
-        cache.remove(key);
+    public synchronized void clear() {
+        window.clear();
+        main.clear();
     }
 
-    public void clear() {
-        cache.clear();
+    public synchronized int size() {
+        return window.size() + main.size();
     }
 
-    public int size() {
-        return cache.size();
+    public synchronized void cleanup() {
+        expirations += removeExpired(window) + removeExpired(main);
+    }
+
+    public synchronized Map<String, Object> getStats() {
+        Map<String, Object> stats = new HashMap<>();
+        long lookups = hits + misses;
+        stats.put("size", window.size() + main.size());
+        stats.put("maxEntries", maxEntries);
+        stats.put("hits", hits);
+        stats.put("misses", misses);
+        stats.put("hitRate", lookups == 0 ? 0.0 : (double) hits / lookups);
+        stats.put("evictions", evictions);
+        stats.put("admissionRejections", rejections);
+        stats.put("expirations", expirations);
+        return stats;
+    }
+
+    // ── Internos ─────────────────────────────────────────────────────────
+
+    /** La más antigua de la ventana pasa a main si vence a la víctima de main. */
+    private void admitFromWindow() {
+        Iterator<Map.Entry<String, CacheEntry>> it = window.entrySet().iterator();
+        Map.Entry<String, CacheEntry> eldest = it.next();
+        String     key   = eldest.getKey();
+        CacheEntry entry = eldest.getValue();
+        it.remove();
+
+        if (entry.isExpired()) {
+            expirations++;
+            return;
+        }
+        if (main.size() < mainMax) {
+            main.put(key, entry);
+            return;
+        }
+
+        Iterator<Map.Entry<String, CacheEntry>> mainIt = main.entrySet().iterator();
+        Map.Entry<String, CacheEntry> victim = mainIt.next();
+        if (victim.getValue().isExpired()) {
+            mainIt.remove();
+            expirations++;
+            main.put(key, entry);
+            return;
+        }
+        // Sale una de las dos: la víctima si el candidato es más frecuente
+        evictions++;
+        if (sketch.frequency(key) > sketch.frequency(victim.getKey())) {
+            mainIt.remove();
+            main.put(key, entry);
+        } else {
+            rejections++;
+        }
     }
 
-    public void cleanup() {
-        cache.entrySet().removeIf(entry -> entry.getValue().isExpired());
+    private static int removeExpired(Map<String, CacheEntry> map) {
+        int before = map.size();
+        map.values().removeIf(CacheEntry::isExpired);
+        return before - map.size();
     }
 }
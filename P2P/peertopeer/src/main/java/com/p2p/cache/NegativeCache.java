@@ -0,0 +1,85 @@
+package com.p2p.cache;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Caché de respuestas negativas: filename → "no encontrado en la red a las T".
+ *
+ * Evita repetir el recorrido de peers (NACK tras NACK) para un archivo que
+ * nadie tiene. Caduca a los ttlMs (-Dp2p.negcache.ttlMs, por defecto 10 s;
+ * 0 lo desactiva) y se invalida en cuanto un PEER_ANNOUNCE o una respuesta
+ * autoritativa menciona el archivo.
+ */
+public class NegativeCache {
+
+    public static final long DEFAULT_TTL_MS = Long.getLong("p2p.negcache.ttlMs", 10_000L);
+    public static final int  MAX_ENTRIES    = 10_000;
+
+    private final ConcurrentHashMap<String, Long> notFoundAt = new ConcurrentHashMap<>();
+    private final long ttlMs;
+
+    // Métricas
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder invalidations = new LongAdder();
+
+    public NegativeCache() {
+        this(DEFAULT_TTL_MS);
+    }
+
+    public NegativeCache(long ttlMs) {
+        this.ttlMs = ttlMs;
+    }
+
+    /** Registra que ningún peer conoce filename. */
+    public void put(String filename) {
+        if (ttlMs <= 0) return;
+        if (notFoundAt.size() >= MAX_ENTRIES) {
+            cleanup();
+            if (notFoundAt.size() >= MAX_ENTRIES) return;
+        }
+        notFoundAt.put(filename, System.currentTimeMillis());
+    }
+
+    /** true si hay una respuesta negativa vigente (caducidad perezosa). */
+    public boolean isNotFound(String filename) {
+        Long since = notFoundAt.get(filename);
+        if (since == null) {
+            misses.increment();
+            return false;
+        }
+        if (System.currentTimeMillis() - since > ttlMs) {
+            notFoundAt.remove(filename, since);
+            misses.increment();
+            return false;
+        }
+        hits.increment();
+        return true;
+    }
+
+    public void invalidate(String filename) {
+        if (notFoundAt.remove(filename) != null) invalidations.increment();
+    }
+
+    public void cleanup() {
+        long now = System.currentTimeMillis();
+        notFoundAt.values().removeIf(since -> now - since > ttlMs);
+    }
+
+    public int size() {
+        return notFoundAt.size();
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new HashMap<>();
+        stats.put("size", notFoundAt.size());
+        stats.put("ttlMs", ttlMs);
+        stats.put("hits", hits.sum());
+        stats.put("misses", misses.sum());
+        stats.put("invalidations", invalidations.sum());
+        return stats;
+    }
+}
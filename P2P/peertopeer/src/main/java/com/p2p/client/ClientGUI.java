@@ -2,6 +2,7 @@ package com.p2p.client;
 
 import com.p2p.nameserver.NameServer;
 import com.p2p.network.FileTransferTCP;
+import com.p2p.network.SwarmDownloader;
 import com.p2p.network.Message;
 import com.p2p.network.MessageType;
 import com.p2p.network.TCPNetworkModule;
@@ -142,8 +143,8 @@ public class ClientGUI extends JFrame {
         log("⬇ Descargando '" + filename + "' de " + ownerPeerId + "...");
         new Thread(() -> {
             try {
-                FileTransferTCP.DownloadResult dlResult =
-                        FileTransferTCP.downloadFile(ownerPeerId, filename, "shared");
+                FileTransferTCP.DownloadResult dlResult = SwarmDownloader.download(
+                        ownerPeerId, nameServer.rankOwners(filename), filename, "shared");
                 File dest = dlResult.file;
                 sharedList.addFile(dest.getName());
                 metadataStore.addMetadata(FileMetadata.fromFile(dest));
@@ -179,9 +180,9 @@ public class ClientGUI extends JFrame {
             FileUtils.copyFile(file, dest);
             sharedList.addFile(file.getName());
             metadataStore.addMetadata(FileMetadata.fromFile(dest));
-            Message ann = new Message(MessageType.PEER_ANNOUNCE, networkModule.getNodeId());
-            ann.addPayload("sharedFiles", sharedList.getSharedFiles());
-            networkModule.broadcast(ann);
+            // Sin DHT, SharedList ya anuncia el alta como delta
+            if (nameServer.getDht() != null)
+                nameServer.getDht().publish(file.getName());
             log("📤 Compartido: " + file.getName());
             refreshAll();
         } catch (Exception e) {
@@ -2,6 +2,7 @@ package com.p2p.client;
 
 import com.p2p.nameserver.NameServer;
 import com.p2p.network.FileTransferTCP;
+import com.p2p.network.SwarmDownloader;
 import com.p2p.network.Message;
 import com.p2p.network.MessageType;
 import com.p2p.network.TCPNetworkModule;
@@ -159,8 +160,8 @@ public class FileEditor extends JFrame {
     private void downloadAndShow() {
         new Thread(() -> {
             try {
-                FileTransferTCP.DownloadResult result =
-                        FileTransferTCP.downloadFile(ownerPeerId, filename, "shared");
+                FileTransferTCP.DownloadResult result = SwarmDownloader.download(
+                        ownerPeerId, nameServer.rankOwners(filename), filename, "shared");
                 nameServer.getSharedListRef().addFile(result.file.getName());
 
                 // ── Registrar copia en CopyRepository (Unit of Work) ──
@@ -295,7 +296,7 @@ public class FileEditor extends JFrame {
     /**
      * Guarda localmente y, si es remoto:
      *   - Compara checksum para saber si realmente cambió.
-     *   - Si cambió → sube al dueño (uploadFile).
+     *   - Si cambió → sube al dueño solo los bloques modificados (uploadDelta).
      *   - Si NO cambió → no sube nada (optimización del enunciado).
      */
     private void doSave(File f) {
@@ -331,7 +332,7 @@ public class FileEditor extends JFrame {
 
         new Thread(() -> {
             try {
-                String response = FileTransferTCP.uploadFile(
+                String response = FileTransferTCP.uploadDelta(
                         ownerPeerId, filename, snapFile, snapOrigTs);
 
                 SwingUtilities.invokeLater(() -> {
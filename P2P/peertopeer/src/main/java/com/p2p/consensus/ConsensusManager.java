@@ -8,6 +8,7 @@ import com.p2p.network.TCPNetworkModule;
 import com.p2p.shared.LogRegistry;
 import com.p2p.shared.SharedList;
 import com.p2p.utils.FileUtils;
+import com.p2p.utils.HashedWheelTimer;
 
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
@@ -45,21 +46,21 @@ public class ConsensusManager implements TCPNetworkModule.MessageListener {
         ConsensusVote vote = new ConsensusVote(voteId, filename, networkModule.getNodeId());
         activeVotes.put(voteId, vote);
 
-        // Enviar consulta de consenso a todos los peers
+        // Enviar consulta de consenso a toda la red (difusión en árbol)
         Message query = new Message(MessageType.CONSENSUS_QUERY, networkModule.getNodeId());
         query.addPayload("voteId", voteId);
         query.addPayload("filename", filename);
         query.addPayload("initiator", networkModule.getNodeId());
         query.addPayload("timestamp", System.currentTimeMillis());
 
-        networkModule.broadcast(query);
-        logRegistry.info("ConsensusManager",
-                "Consulta de consenso enviada a " + networkModule.getPeerCount() + " peers");
-
-        // Programar cierre de votación
-        networkModule.getThreadManager().getScheduler().schedule(
+        // Programar cierre de votación (antes de difundir: las respuestas pueden llegar ya)
+        vote.expectedVotes = networkModule.getClusterSize();
+        vote.timeout = networkModule.getThreadManager().getTimer().schedule(
                 () -> finalizeVote(voteId),
                 10, TimeUnit.SECONDS);
+        networkModule.disseminate(query);
+        logRegistry.info("ConsensusManager",
+                "Consulta de consenso difundida a " + vote.expectedVotes + " peers");
     }
 
     @Override
@@ -96,7 +97,8 @@ public class ConsensusManager implements TCPNetworkModule.MessageListener {
         response.addPayload("hasFile", hasFile);
         response.addPayload("responder", networkModule.getNodeId());
 
-        networkModule.sendMessage(response, source.getPeerId());
+        // Directa al iniciador si es vecino; si no, por el camino inverso de la difusión
+        networkModule.replyTo(message, response, source);
 
         logRegistry.info("ConsensusManager",
                 "Respuesta enviada: hasFile=" + hasFile);
@@ -115,6 +117,10 @@ public class ConsensusManager implements TCPNetworkModule.MessageListener {
             logRegistry.info("ConsensusManager",
                     "Voto recibido de " + responder + ": hasFile=" + hasFile +
                             " [Total: " + vote.getVoteCount() + "]");
+
+            // Votaron todos: cerrar ya en lugar de esperar al timeout
+            if (vote.getVoteCount() >= vote.expectedVotes && vote.timeout != null && vote.timeout.cancel())
+                finalizeVote(voteId);
         }
     }
 
@@ -188,6 +194,8 @@ public class ConsensusManager implements TCPNetworkModule.MessageListener {
         private final String initiator;
         private final Map<String, Boolean> votes;
         private final long startTime;
+        private volatile int expectedVotes = Integer.MAX_VALUE;
+        private volatile HashedWheelTimer.Timeout timeout;
 
         public ConsensusVote(String voteId, String filename, String initiator) {
             this.voteId = voteId;
@@ -197,11 +205,11 @@ public class ConsensusManager implements TCPNetworkModule.MessageListener {
             this.startTime = System.currentTimeMillis();
         }
 
-        public void addVote(String peerId, boolean hasFile) {
+        public synchronized void addVote(String peerId, boolean hasFile) {
             votes.put(peerId, hasFile);
         }
 
-        public boolean shouldRemove() {
+        public synchronized boolean shouldRemove() {
             if (votes.isEmpty())
                 return false;
 
@@ -209,7 +217,7 @@ public class ConsensusManager implements TCPNetworkModule.MessageListener {
             return yesVotes > votes.size() / 2;
         }
 
-        public int getVoteCount() {
+        public synchronized int getVoteCount() {
             return votes.size();
         }
 
@@ -0,0 +1,359 @@
+package com.p2p.dht;
+
+import com.p2p.network.Message;
+import com.p2p.network.MessageType;
+import com.p2p.network.TCPNetworkModule;
+import com.p2p.shared.LogRegistry;
+import com.p2p.shared.SharedList;
+import com.p2p.utils.HashedWheelTimer;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Índice de nombres distribuido estilo Kademlia (modo opcional, -Dp2p.dht=true).
+ *
+ * En lugar de que cada nodo guarde la lista completa de archivos de todos
+ * (PEER_ANNOUNCE → fileLocations), cada registro "filename → dueño" vive solo
+ * en los K nodos cuya clave (SHA-1 del nodeId) está más cerca por XOR de
+ * SHA-1(filename). Las búsquedas son iterativas: en cada ronda se pregunta
+ * a los ALPHA contactos más cercanos aún no consultados, que devuelven otros
+ * más cercanos, así que bastan O(log n) rondas.
+ *
+ *   DHT_FIND  {rpcId, target, findValue} → DHT_FOUND {rpcId, nodes[, owners]}
+ *   DHT_STORE {filename, owner, ttl}
+ *
+ * Los contactos se conectan bajo demanda. Cada nodo republica sus archivos
+ * cada REPUBLISH_MS y los registros caducan a 2 × REPUBLISH_MS, así que lo
+ * que deja de compartirse desaparece solo del índice.
+ */
+public class DhtNode implements TCPNetworkModule.MessageListener {
+
+    public static final boolean ENABLED = Boolean.getBoolean("p2p.dht");
+    /** Tamaño de bucket y factor de replicación (-Dp2p.dht.k). */
+    public static final int K = Integer.getInteger("p2p.dht.k", 8);
+    private static final int  ALPHA = 3;
+    private static final long RPC_TIMEOUT_MS = 2_000;
+    private static final long REPUBLISH_MS   = Long.getLong("p2p.dht.republishMs", 600_000L);
+    private static final long RECORD_TTL_MS  = 2 * REPUBLISH_MS;
+
+    private final TCPNetworkModule networkModule;
+    private final SharedList sharedList;
+    private final LogRegistry logRegistry;
+    private final RoutingTable routingTable;
+    private final HashedWheelTimer timer;
+
+    // filename → (dueño → expira en); solo las claves de nuestro tramo
+    private final ConcurrentHashMap<String, Map<String, Long>> records = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, CompletableFuture<Message>> pendingRpcs = new ConcurrentHashMap<>();
+    private final AtomicBoolean bootstrapped = new AtomicBoolean();
+
+    // Métricas
+    private final LongAdder lookups = new LongAdder();
+    private final LongAdder lookupRounds = new LongAdder();
+    private final LongAdder rpcTimeouts = new LongAdder();
+    private final LongAdder storesReceived = new LongAdder();
+
+    public DhtNode(TCPNetworkModule networkModule, SharedList sharedList, LogRegistry logRegistry) {
+        this.networkModule = networkModule;
+        this.sharedList    = sharedList;
+        this.logRegistry   = logRegistry;
+        this.routingTable  = new RoutingTable(networkModule.getNodeId(), K);
+        this.timer         = networkModule.getThreadManager().getTimer();
+    }
+
+    public void start() {
+        ScheduledExecutorService scheduler = networkModule.getThreadManager().getScheduler();
+        scheduler.scheduleAtFixedRate(this::republishAll, REPUBLISH_MS, REPUBLISH_MS, TimeUnit.MILLISECONDS);
+        scheduler.scheduleAtFixedRate(this::expireRecords, 60, 60, TimeUnit.SECONDS);
+        logRegistry.info("DHT", "Modo DHT activo [K=" + K + ", clave "
+                + routingTable.getSelfKey().toString(16) + "]");
+    }
+
+    // ── API ──────────────────────────────────────────────────────────────
+
+    /** Dueños conocidos de filename (ya conectados); vacío si nadie lo publica. */
+    public CompletableFuture<Set<String>> findOwners(String filename) {
+        CompletableFuture<Set<String>> result = new CompletableFuture<>();
+        networkModule.getThreadManager().executeTask(() -> {
+            try {
+                Set<String> owners = iterativeFind(filename, true).owners;
+                owners.remove(networkModule.getNodeId());
+                owners.removeIf(owner -> !ensureConnected(owner));
+                result.complete(owners);
+            } catch (RuntimeException e) {
+                result.completeExceptionally(e);
+            }
+        });
+        return result;
+    }
+
+    /** Publica que compartimos filename en los K nodos responsables. */
+    public void publish(String filename) {
+        networkModule.getThreadManager().executeTask(() -> store(filename));
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new HashMap<>();
+        long n = lookups.sum();
+        stats.put("contacts", routingTable.size());
+        stats.put("records", records.size());
+        stats.put("lookups", n);
+        stats.put("meanRounds", n == 0 ? 0.0 : (double) lookupRounds.sum() / n);
+        stats.put("rpcTimeouts", rpcTimeouts.sum());
+        stats.put("storesReceived", storesReceived.sum());
+        stats.put("k", K);
+        return stats;
+    }
+
+    // ── MessageListener ──────────────────────────────────────────────────
+
+    @Override
+    public void onMessage(Message message, TCPNetworkModule.PeerConnection source) {
+        switch (message.getType()) {
+            case DHT_FIND:
+                routingTable.touch(message.getSenderId());
+                handleFind(message, source);
+                break;
+            case DHT_FOUND:
+                routingTable.touch(message.getSenderId());
+                CompletableFuture<Message> reply = pendingRpcs.remove((String) message.getPayload("rpcId"));
+                if (reply != null) reply.complete(message);
+                break;
+            case DHT_STORE:
+                routingTable.touch(message.getSenderId());
+                handleStore(message);
+                break;
+            default:
+                break;
+        }
+    }
+
+    @Override
+    public void onPeerConnected(String peerId) {
+        routingTable.touch(peerId);
+        if (bootstrapped.compareAndSet(false, true)) {
+            // Primer contacto: buscar nuestra propia clave llena la tabla de rutas
+            networkModule.getThreadManager().executeTask(() -> {
+                iterativeFind(networkModule.getNodeId(), false);
+                republishAll();
+            });
+        } else {
+            networkModule.getThreadManager().executeTask(() -> handOff(peerId));
+        }
+    }
+
+    // ── Handlers ─────────────────────────────────────────────────────────
+
+    private void handleFind(Message message, TCPNetworkModule.PeerConnection source) {
+        String target = (String) message.getPayload("target");
+        boolean findValue = Boolean.TRUE.equals(message.getPayload("findValue"));
+
+        List<String> nodes = new ArrayList<>(routingTable.closest(RoutingTable.keyOf(target), K));
+        nodes.remove(message.getSenderId());
+
+        Message reply = new Message(MessageType.DHT_FOUND, networkModule.getNodeId());
+        reply.addPayload("rpcId", message.getPayload("rpcId"));
+        reply.addPayload("nodes", nodes);
+        if (findValue) {
+            List<String> owners = localOwners(target);
+            if (!owners.isEmpty()) reply.addPayload("owners", new ArrayList<>(owners));
+        }
+        source.send(reply);
+    }
+
+    private void handleStore(Message message) {
+        String filename = (String) message.getPayload("filename");
+        String owner    = (String) message.getPayload("owner");
+        Object ttl      = message.getPayload("ttl");
+        if (filename == null || owner == null) return;
+        storeLocal(filename, owner, ttl instanceof Number ? ((Number) ttl).longValue() : RECORD_TTL_MS);
+        storesReceived.increment();
+    }
+
+    // ── Kademlia ─────────────────────────────────────────────────────────
+
+    private static class FindResult {
+        final List<String> closest;
+        final Set<String> owners;
+
+        FindResult(List<String> closest, Set<String> owners) {
+            this.closest = closest;
+            this.owners  = owners;
+        }
+    }
+
+    /**
+     * Búsqueda iterativa de target. Con findValue se detiene en cuanto algún
+     * nodo devuelve dueños; si no, recorre hasta que los K más cercanos
+     * conocidos hayan sido consultados.
+     */
+    private FindResult iterativeFind(String target, boolean findValue) {
+        String self = networkModule.getNodeId();
+        BigInteger key = RoutingTable.keyOf(target);
+        Map<String, BigInteger> distance = new HashMap<>();
+        Comparator<String> byDistance = Comparator
+                .comparing((String c) -> distance.computeIfAbsent(c, x -> RoutingTable.keyOf(x).xor(key)))
+                .thenComparing(c -> c);
+
+        TreeSet<String> shortlist = new TreeSet<>(byDistance);
+        shortlist.addAll(routingTable.closest(key, K));
+        Set<String> queried = new HashSet<>();
+        Set<String> responded = new HashSet<>();
+        Set<String> owners = findValue ? new HashSet<>(localOwners(target)) : new HashSet<>();
+
+        int rounds = 0;
+        while (!(findValue && !owners.isEmpty())) {
+            // Hasta ALPHA no consultados, solo entre los K más cercanos conocidos
+            List<String> batch = new ArrayList<>(ALPHA);
+            int rank = 0;
+            for (String contact : shortlist) {
+                if (rank++ >= K || batch.size() == ALPHA) break;
+                if (!queried.contains(contact)) batch.add(contact);
+            }
+            if (batch.isEmpty()) break;
+            rounds++;
+
+            Map<String, CompletableFuture<Message>> calls = new LinkedHashMap<>();
+            for (String contact : batch) {
+                queried.add(contact);
+                calls.put(contact, rpcFind(contact, target, findValue));
+            }
+            for (Map.Entry<String, CompletableFuture<Message>> call : calls.entrySet()) {
+                String contact = call.getKey();
+                Message reply;
+                try {
+                    reply = call.getValue().get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return new FindResult(List.of(self), owners);
+                } catch (ExecutionException e) {
+                    reply = null;
+                }
+                if (reply == null) {
+                    shortlist.remove(contact);
+                    routingTable.remove(contact);
+                    continue;
+                }
+                responded.add(contact);
+                for (String node : stringList(reply.getPayload("nodes")))
+                    if (!node.equals(self)) shortlist.add(node);
+                owners.addAll(stringList(reply.getPayload("owners")));
+            }
+        }
+        lookups.increment();
+        lookupRounds.add(rounds);
+
+        // Los K más cercanos que respondieron, contándonos a nosotros
+        List<String> closest = new ArrayList<>(responded);
+        closest.add(self);
+        closest.sort(byDistance);
+        return new FindResult(new ArrayList<>(closest.subList(0, Math.min(K, closest.size()))), owners);
+    }
+
+    private CompletableFuture<Message> rpcFind(String contact, String target, boolean findValue) {
+        if (!ensureConnected(contact))
+            return CompletableFuture.failedFuture(new IOException("Sin conexión con " + contact));
+
+        String rpcId = UUID.randomUUID().toString();
+        CompletableFuture<Message> reply = new CompletableFuture<>();
+        pendingRpcs.put(rpcId, reply);
+        HashedWheelTimer.Timeout timeout = timer.schedule(() -> {
+            if (pendingRpcs.remove(rpcId) != null) {
+                rpcTimeouts.increment();
+                reply.completeExceptionally(new TimeoutException("DHT_FIND sin respuesta de " + contact));
+            }
+        }, RPC_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        reply.whenComplete((m, e) -> timeout.cancel());
+
+        Message query = new Message(MessageType.DHT_FIND, networkModule.getNodeId());
+        query.addPayload("rpcId", rpcId);
+        query.addPayload("target", target);
+        query.addPayload("findValue", findValue);
+        networkModule.sendMessage(query, contact);
+        return reply;
+    }
+
+    private void store(String filename) {
+        String self = networkModule.getNodeId();
+        for (String node : iterativeFind(filename, false).closest) {
+            if (node.equals(self)) {
+                storeLocal(filename, self, RECORD_TTL_MS);
+            } else {
+                sendStore(node, filename, self, RECORD_TTL_MS);
+            }
+        }
+    }
+
+    private void republishAll() {
+        List<String> files = sharedList.getSharedFiles();
+        for (String filename : files) store(filename);
+        if (!files.isEmpty())
+            logRegistry.info("DHT", "Republicados " + files.size() + " archivos");
+    }
+
+    /** Un vecino nuevo recibe los registros de los que pasa a ser responsable. */
+    private void handOff(String peerId) {
+        long now = System.currentTimeMillis();
+        records.forEach((filename, owners) -> {
+            if (!routingTable.closest(RoutingTable.keyOf(filename), K).contains(peerId)) return;
+            owners.forEach((owner, expires) -> {
+                if (expires > now) sendStore(peerId, filename, owner, expires - now);
+            });
+        });
+    }
+
+    private void sendStore(String node, String filename, String owner, long ttl) {
+        Message msg = new Message(MessageType.DHT_STORE, networkModule.getNodeId());
+        msg.addPayload("filename", filename);
+        msg.addPayload("owner", owner);
+        msg.addPayload("ttl", ttl);
+        networkModule.sendMessage(msg, node);
+    }
+
+    // ── Registros locales ────────────────────────────────────────────────
+
+    private void storeLocal(String filename, String owner, long ttl) {
+        records.computeIfAbsent(filename, f -> new ConcurrentHashMap<>())
+                .put(owner, System.currentTimeMillis() + ttl);
+    }
+
+    private List<String> localOwners(String filename) {
+        List<String> owners = new ArrayList<>();
+        if (sharedList.isShared(filename)) owners.add(networkModule.getNodeId());
+        Map<String, Long> stored = records.get(filename);
+        if (stored != null) {
+            long now = System.currentTimeMillis();
+            stored.forEach((owner, expires) -> {
+                if (expires > now && !owners.contains(owner)) owners.add(owner);
+            });
+        }
+        return owners;
+    }
+
+    private void expireRecords() {
+        long now = System.currentTimeMillis();
+        records.values().forEach(owners -> owners.values().removeIf(expires -> expires <= now));
+        records.values().removeIf(Map::isEmpty);
+    }
+
+    // ── Utilidades ───────────────────────────────────────────────────────
+
+    private boolean ensureConnected(String peerId) {
+        if (networkModule.isConnectedTo(peerId)) return true;
+        networkModule.connectToPeer(peerId.split(":")[0]);
+        return networkModule.isConnectedTo(peerId);
+    }
+
+    private static List<String> stringList(Object payload) {
+        List<String> result = new ArrayList<>();
+        if (payload instanceof List<?>)
+            for (Object o : (List<?>) payload)
+                if (o instanceof String) result.add((String) o);
+        return result;
+    }
+}
@@ -0,0 +1,86 @@
+package com.p2p.dht;
+
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+/**
+ * Tabla de rutas Kademlia: ID_BITS k-buckets indexados por el bit más alto
+ * de la distancia XOR entre nuestra clave y la del contacto.
+ *
+ * Cada bucket guarda hasta k contactos en orden de último contacto; si se
+ * llena, sale el más antiguo (no hay ping previo: los contactos muertos se
+ * retiran también al fallar un RPC).
+ */
+class RoutingTable {
+
+    static final int ID_BITS = 160;
+
+    private final String selfId;
+    private final BigInteger selfKey;
+    private final int k;
+    private final List<LinkedHashMap<String, BigInteger>> buckets = new ArrayList<>(ID_BITS);
+
+    RoutingTable(String selfId, int k) {
+        this.selfId  = selfId;
+        this.selfKey = keyOf(selfId);
+        this.k       = k;
+        for (int i = 0; i < ID_BITS; i++) buckets.add(new LinkedHashMap<>());
+    }
+
+    /** Clave de 160 bits (SHA-1) de un nodeId o de un nombre de archivo. */
+    static BigInteger keyOf(String value) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(value.getBytes(StandardCharsets.UTF_8));
+            return new BigInteger(1, digest);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    BigInteger getSelfKey() {
+        return selfKey;
+    }
+
+    /** Registra actividad de un contacto (lo mueve al final de su bucket). */
+    synchronized void touch(String contact) {
+        if (contact == null || contact.equals(selfId)) return;
+        BigInteger key = keyOf(contact);
+        LinkedHashMap<String, BigInteger> bucket = buckets.get(bucketIndex(key));
+        bucket.remove(contact);
+        bucket.put(contact, key);
+        if (bucket.size() > k) {
+            Iterator<String> it = bucket.keySet().iterator();
+            it.next();
+            it.remove();
+        }
+    }
+
+    synchronized void remove(String contact) {
+        if (contact == null || contact.equals(selfId)) return;
+        buckets.get(bucketIndex(keyOf(contact))).remove(contact);
+    }
+
+    /** Los n contactos conocidos más cercanos a key (sin incluirnos). */
+    synchronized List<String> closest(BigInteger key, int n) {
+        List<Map.Entry<String, BigInteger>> all = new ArrayList<>();
+        for (LinkedHashMap<String, BigInteger> bucket : buckets) all.addAll(bucket.entrySet());
+        all.sort(Comparator.comparing(e -> e.getValue().xor(key)));
+
+        List<String> result = new ArrayList<>(Math.min(n, all.size()));
+        for (int i = 0; i < all.size() && i < n; i++) result.add(all.get(i).getKey());
+        return result;
+    }
+
+    synchronized int size() {
+        int size = 0;
+        for (LinkedHashMap<String, BigInteger> bucket : buckets) size += bucket.size();
+        return size;
+    }
+
+    private int bucketIndex(BigInteger key) {
+        return Math.max(0, key.xor(selfKey).bitLength() - 1);
+    }
+}
@@ -0,0 +1,306 @@
+package com.p2p.membership;
+
+import com.p2p.network.Message;
+import com.p2p.network.MessageType;
+import com.p2p.network.TCPNetworkModule;
+import com.p2p.shared.LogRegistry;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Membresía por gossip estilo SWIM (modo opcional, -Dp2p.gossip=true).
+ *
+ * Cada nodo conoce a todos los miembros pero solo mantiene conexión con
+ * VIEW_SIZE de ellos (vista parcial). Los cambios (alta, sospecha, caída,
+ * salida) viajan en mensajes GOSSIP a FANOUT vecinos al azar por periodo y
+ * cada uno se retransmite λ·log2(n) veces, así que alcanzan a toda la red
+ * en O(log n) periodos sin que nadie hable con todos.
+ *
+ *   GOSSIP {updates: ["nodeId|incarnation|STATE", ...]}
+ *
+ * Reglas SWIM: una actualización gana si trae mayor incarnation, o la
+ * misma con un estado más grave. Un nodo que se oye sospechoso sube su
+ * incarnation y se anuncia ALIVE (refutación). La incarnation inicial es
+ * la hora de arranque en segundos, así que un nodo reiniciado vuelve
+ * siempre por encima de su registro DEAD.
+ *
+ * La sonda directa de SWIM es la propia conexión TCP (detector phi de
+ * TCPNetworkModule): si se pierde, se intenta reconectar una vez y, si
+ * falla, el miembro pasa a SUSPECT. Los SUSPECT que nadie refuta en
+ * SUSPECT_TIMEOUT_MS pasan a DEAD.
+ */
+public class GossipMembership implements TCPNetworkModule.MessageListener {
+
+    public static final boolean ENABLED = Boolean.getBoolean("p2p.gossip");
+    /** Conexiones que se intenta mantener (-Dp2p.gossip.view). */
+    public static final int VIEW_SIZE = Integer.getInteger("p2p.gossip.view", 8);
+    private static final long PERIOD_MS = Long.getLong("p2p.gossip.periodMs", 1000L);
+    private static final long SUSPECT_TIMEOUT_MS = Long.getLong("p2p.gossip.suspectMs", 15_000L);
+    private static final long DEAD_RETENTION_MS = 60_000;
+    private static final int FANOUT = 3;
+    private static final int RETRANSMIT_MULT = 3;
+    private static final int MAX_UPDATES = 16;
+    private static final int SEED_MEMBERS = 32;
+    private static final int MAX_CONNECTS_PER_PERIOD = 2;
+
+    public enum State { ALIVE, SUSPECT, DEAD, LEFT }
+
+    /** Entrada de la tabla de miembros. */
+    public static class Member {
+        public final String nodeId;
+        public final int incarnation;
+        public final State state;
+        public final long since;
+
+        Member(String nodeId, int incarnation, State state, long since) {
+            this.nodeId      = nodeId;
+            this.incarnation = incarnation;
+            this.state       = state;
+            this.since       = since;
+        }
+
+        String encode() {
+            return nodeId + "|" + incarnation + "|" + state;
+        }
+    }
+
+    private final TCPNetworkModule networkModule;
+    private final LogRegistry logRegistry;
+    private final String selfId;
+    private final AtomicInteger incarnation = new AtomicInteger((int) (System.currentTimeMillis() / 1000));
+
+    private final ConcurrentHashMap<String, Member> members = new ConcurrentHashMap<>();
+    // nodeId → retransmisiones pendientes de su estado actual
+    private final Map<String, Integer> dissemination = new HashMap<>();
+    private final Set<String> connecting = ConcurrentHashMap.newKeySet();
+
+    // Métricas
+    private final LongAdder gossipSent = new LongAdder();
+    private final LongAdder updatesApplied = new LongAdder();
+    private final LongAdder refutations = new LongAdder();
+
+    public GossipMembership(TCPNetworkModule networkModule, LogRegistry logRegistry) {
+        this.networkModule = networkModule;
+        this.logRegistry   = logRegistry;
+        this.selfId        = networkModule.getNodeId();
+    }
+
+    public void start() {
+        networkModule.getThreadManager().getScheduler().scheduleWithFixedDelay(
+                this::tick, PERIOD_MS, PERIOD_MS, TimeUnit.MILLISECONDS);
+        logRegistry.info("Gossip", "Membresía gossip activa [vista=" + VIEW_SIZE + "]");
+    }
+
+    /** Anuncia la salida voluntaria a los vecinos (antes de cerrar la red). */
+    public void leave() {
+        Message bye = new Message(MessageType.GOSSIP, selfId);
+        bye.addPayload("updates", new ArrayList<>(List.of(
+                new Member(selfId, incarnation.get(), State.LEFT, 0).encode())));
+        networkModule.broadcast(bye);
+    }
+
+    /** Miembros vivos conocidos (conectados o no), sin incluirnos. */
+    public List<String> getAliveMembers() {
+        List<String> alive = new ArrayList<>();
+        for (Member m : members.values())
+            if (m.state == State.ALIVE) alive.add(m.nodeId);
+        return alive;
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new HashMap<>();
+        Map<State, Integer> byState = new EnumMap<>(State.class);
+        for (Member m : members.values()) byState.merge(m.state, 1, Integer::sum);
+        for (State s : State.values()) stats.put(s.name().toLowerCase(), byState.getOrDefault(s, 0));
+        stats.put("view", networkModule.getPeerCount());
+        stats.put("incarnation", incarnation.get());
+        synchronized (dissemination) {
+            stats.put("pendingUpdates", dissemination.size());
+        }
+        stats.put("gossipSent", gossipSent.sum());
+        stats.put("updatesApplied", updatesApplied.sum());
+        stats.put("refutations", refutations.sum());
+        return stats;
+    }
+
+    // ── MessageListener ──────────────────────────────────────────────────
+
+    @Override
+    public void onMessage(Message message, TCPNetworkModule.PeerConnection source) {
+        if (message.getType() != MessageType.GOSSIP) return;
+        Object updates = message.getPayload("updates");
+        if (!(updates instanceof List<?>)) return;
+        for (Object update : (List<?>) updates)
+            if (update instanceof String) apply((String) update);
+    }
+
+    @Override
+    public void onPeerConnected(String peerId) {
+        // Una conexión viva prueba que existe; su incarnation real llega con su gossip
+        if (!members.containsKey(peerId))
+            merge(new Member(peerId, 0, State.ALIVE, System.currentTimeMillis()));
+
+        // Siembra: el recién llegado aprende una muestra de la membresía
+        List<String> seed = new ArrayList<>();
+        seed.add(self().encode());
+        List<Member> alive = new ArrayList<>(members.values());
+        Collections.shuffle(alive);
+        for (Member m : alive) {
+            if (seed.size() > SEED_MEMBERS) break;
+            if (m.state == State.ALIVE && !m.nodeId.equals(peerId)) seed.add(m.encode());
+        }
+        Message hello = new Message(MessageType.GOSSIP, selfId);
+        hello.addPayload("updates", seed);
+        networkModule.sendMessage(hello, peerId);
+    }
+
+    @Override
+    public void onPeerDisconnected(String peerId) {
+        Member m = members.get(peerId);
+        if (m == null || m.state != State.ALIVE) return;
+        // Sonda directa: un intento de reconexión antes de sospechar
+        networkModule.getThreadManager().executeTask(() -> {
+            if (connect(peerId)) return;
+            Member current = members.get(peerId);
+            if (current != null && current.state == State.ALIVE)
+                merge(new Member(peerId, current.incarnation, State.SUSPECT, System.currentTimeMillis()));
+        });
+    }
+
+    // ── Protocolo ────────────────────────────────────────────────────────
+
+    private void tick() {
+        try {
+            expire();
+            fillView();
+            gossip();
+        } catch (RuntimeException e) {
+            logRegistry.info("Gossip", "Error en periodo de gossip: " + e.getMessage());
+        }
+    }
+
+    /** SUSPECT sin refutar → DEAD; DEAD/LEFT antiguos se olvidan. */
+    private void expire() {
+        long now = System.currentTimeMillis();
+        for (Member m : members.values()) {
+            if (m.state == State.SUSPECT && now - m.since >= SUSPECT_TIMEOUT_MS)
+                merge(new Member(m.nodeId, m.incarnation, State.DEAD, now));
+            else if ((m.state == State.DEAD || m.state == State.LEFT) && now - m.since >= DEAD_RETENTION_MS)
+                members.remove(m.nodeId, m);
+        }
+    }
+
+    /** Conecta con miembros vivos al azar hasta tener VIEW_SIZE vecinos. */
+    private void fillView() {
+        int missing = VIEW_SIZE - networkModule.getPeerCount() - connecting.size();
+        if (missing <= 0) return;
+        List<String> candidates = getAliveMembers();
+        candidates.removeIf(id -> networkModule.isConnectedTo(id) || connecting.contains(id));
+        Collections.shuffle(candidates);
+        for (String id : candidates.subList(0, Math.min(Math.min(missing, MAX_CONNECTS_PER_PERIOD), candidates.size()))) {
+            connecting.add(id);
+            networkModule.getThreadManager().executeTask(() -> {
+                try {
+                    connect(id);
+                } finally {
+                    connecting.remove(id);
+                }
+            });
+        }
+    }
+
+    /** Envía las actualizaciones pendientes a FANOUT vecinos al azar. */
+    private void gossip() {
+        List<String> updates = new ArrayList<>();
+        synchronized (dissemination) {
+            if (dissemination.isEmpty()) return;
+            int limit = RETRANSMIT_MULT * (32 - Integer.numberOfLeadingZeros(members.size() + 1));
+            for (Iterator<Map.Entry<String, Integer>> it = dissemination.entrySet().iterator();
+                 it.hasNext() && updates.size() < MAX_UPDATES; ) {
+                Map.Entry<String, Integer> entry = it.next();
+                Member m = entry.getKey().equals(selfId) ? self() : members.get(entry.getKey());
+                if (m != null) updates.add(m.encode());
+                if (m == null || entry.getValue() + 1 >= limit) it.remove();
+                else entry.setValue(entry.getValue() + 1);
+            }
+        }
+        if (updates.isEmpty()) return;
+
+        List<String> neighbours = new ArrayList<>(networkModule.getPeers().keySet());
+        Collections.shuffle(neighbours, ThreadLocalRandom.current());
+        for (String peerId : neighbours.subList(0, Math.min(FANOUT, neighbours.size()))) {
+            Message gossip = new Message(MessageType.GOSSIP, selfId);
+            gossip.addPayload("updates", new ArrayList<>(updates));
+            networkModule.sendMessage(gossip, peerId);
+            gossipSent.increment();
+        }
+    }
+
+    /** Aplica "nodeId|incarnation|STATE" recibido por gossip. */
+    private void apply(String encoded) {
+        String[] parts = encoded.split("\\|");
+        if (parts.length != 3) return;
+        int inc;
+        State state;
+        try {
+            inc   = Integer.parseInt(parts[1]);
+            state = State.valueOf(parts[2]);
+        } catch (IllegalArgumentException e) {
+            return;
+        }
+        String nodeId = parts[0];
+        if (nodeId.equals(selfId)) {
+            // Refutación: nos dan por sospechosos o caídos estando vivos
+            if (state != State.ALIVE && inc >= incarnation.get()) {
+                incarnation.set(inc + 1);
+                refutations.increment();
+                enqueue(selfId);
+                logRegistry.info("Gossip", "Refutada sospecha sobre este nodo (incarnation " + (inc + 1) + ")");
+            }
+            return;
+        }
+        merge(new Member(nodeId, inc, state, System.currentTimeMillis()));
+    }
+
+    /** Sustituye la entrada si la actualización la supera según SWIM; si cambia, se difunde. */
+    private void merge(Member update) {
+        boolean[] changed = {false};
+        members.compute(update.nodeId, (id, current) -> {
+            if (current != null && !supersedes(update, current)) return current;
+            changed[0] = true;
+            return update;
+        });
+        if (!changed[0]) return;
+        updatesApplied.increment();
+        enqueue(update.nodeId);
+        if (update.state != State.ALIVE)
+            logRegistry.info("Gossip", "Miembro " + update.nodeId + " → " + update.state);
+    }
+
+    private static boolean supersedes(Member update, Member current) {
+        if (update.incarnation != current.incarnation)
+            return update.incarnation > current.incarnation;
+        return update.state.ordinal() > current.state.ordinal();
+    }
+
+    private void enqueue(String nodeId) {
+        synchronized (dissemination) {
+            dissemination.put(nodeId, 0);
+        }
+    }
+
+    private Member self() {
+        return new Member(selfId, incarnation.get(), State.ALIVE, 0);
+    }
+
+    private boolean connect(String nodeId) {
+        if (!networkModule.isConnectedTo(nodeId))
+            networkModule.connectToPeer(nodeId.split(":")[0]);
+        return networkModule.isConnectedTo(nodeId);
+    }
+}
@@ -0,0 +1,195 @@
+package com.p2p.metadata;
+
+import java.io.*;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Índice persistente de FileMetadata (clave: filename).
+ *
+ *   index.snapshot → estado completo compactado
+ *   index.log      → cambios posteriores (PUT / REMOVE), solo se agrega al final
+ *
+ * load() aplica el snapshot y luego el log; un registro final incompleto
+ * (caída a mitad de escritura) se ignora. compact() reescribe el snapshot
+ * con el estado actual (temporal + renombrado) y vacía el log; se hace al
+ * arrancar, al cerrar y cada COMPACT_THRESHOLD registros de log.
+ */
+class MetadataIndex {
+
+    static final int COMPACT_THRESHOLD = 1000;
+
+    private static final int  SNAPSHOT_MAGIC = 0x50324D49; // "P2MI"
+    private static final byte OP_PUT    = 1;
+    private static final byte OP_REMOVE = 2;
+
+    private final File snapshotFile;
+    private final File logFile;
+    private DataOutputStream log;
+    private int logRecords;
+
+    MetadataIndex(String dir) {
+        new File(dir).mkdirs();
+        this.snapshotFile = new File(dir, "index.snapshot");
+        this.logFile      = new File(dir, "index.log");
+    }
+
+    /** Estado guardado: snapshot + log. */
+    synchronized Map<String, FileMetadata> load() {
+        Map<String, FileMetadata> entries = new HashMap<>();
+        if (snapshotFile.exists()) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(snapshotFile)))) {
+                if (in.readInt() == SNAPSHOT_MAGIC) {
+                    int count = in.readInt();
+                    for (int i = 0; i < count; i++) {
+                        FileMetadata m = readMetadata(in);
+                        entries.put(m.getFilename(), m);
+                    }
+                }
+            } catch (IOException e) {
+                System.err.println("⚠ Snapshot de metadatos ilegible, se reconstruye: " + e.getMessage());
+                entries.clear();
+            }
+        }
+        if (logFile.exists()) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(logFile)))) {
+                for (;;) {
+                    int op = in.read();
+                    if (op == -1) break;
+                    if (op == OP_PUT) {
+                        FileMetadata m = readMetadata(in);
+                        entries.put(m.getFilename(), m);
+                    } else if (op == OP_REMOVE) {
+                        entries.remove(in.readUTF());
+                    } else {
+                        break;
+                    }
+                }
+            } catch (IOException e) {
+                // Último registro incompleto: se descarta, compact() lo limpia
+            }
+        }
+        return entries;
+    }
+
+    synchronized void put(FileMetadata metadata) {
+        append(out -> {
+            out.writeByte(OP_PUT);
+            writeMetadata(out, metadata);
+        });
+    }
+
+    synchronized void remove(String filename) {
+        append(out -> {
+            out.writeByte(OP_REMOVE);
+            out.writeUTF(filename);
+        });
+    }
+
+    synchronized boolean needsCompaction() {
+        return logRecords >= COMPACT_THRESHOLD;
+    }
+
+    /**
+     * Reescribe el snapshot con entries y vacía el log. entries puede ser la
+     * vista viva del mapa: se copia una vez para que el recuento de la
+     * cabecera coincida con los registros aunque otro hilo borre entre medias.
+     */
+    synchronized void compact(Collection<FileMetadata> entries) {
+        File tmp = new File(snapshotFile.getPath() + ".tmp");
+        try {
+            List<FileMetadata> snapshot = new ArrayList<>(entries);
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+                out.writeInt(SNAPSHOT_MAGIC);
+                out.writeInt(snapshot.size());
+                for (FileMetadata m : snapshot) writeMetadata(out, m);
+            }
+            try {
+                Files.move(tmp.toPath(), snapshotFile.toPath(),
+                        StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmp.toPath(), snapshotFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+            closeLog();
+            new FileOutputStream(logFile).close(); // vaciar log
+            logRecords = 0;
+        } catch (IOException e) {
+            tmp.delete();
+            System.err.println("⚠ No se pudo compactar el índice de metadatos: " + e.getMessage());
+        }
+    }
+
+    synchronized void close() {
+        closeLog();
+    }
+
+    // ── Internos ─────────────────────────────────────────────────────────
+
+    private interface Record {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    private void append(Record record) {
+        try {
+            if (log == null)
+                log = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(logFile, true)));
+            record.write(log);
+            log.flush();
+            logRecords++;
+        } catch (IOException e) {
+            System.err.println("⚠ No se pudo escribir el índice de metadatos: " + e.getMessage());
+        }
+    }
+
+    private void closeLog() {
+        if (log == null) return;
+        try {
+            log.close();
+        } catch (IOException ignored) {
+        }
+        log = null;
+    }
+
+    private static void writeMetadata(DataOutputStream out, FileMetadata m) throws IOException {
+        out.writeUTF(m.getFilename());
+        writeNullable(out, m.getChecksum());
+        writeNullable(out, m.getOwner());
+        out.writeLong(m.getExpiration());
+        out.writeLong(m.getSize());
+        out.writeLong(m.getLastModified());
+        out.writeLong(m.getCreationDate());
+        out.writeBoolean(m.isShared());
+    }
+
+    private static FileMetadata readMetadata(DataInputStream in) throws IOException {
+        String filename   = in.readUTF();
+        String checksum   = readNullable(in);
+        String owner      = readNullable(in);
+        long expiration   = in.readLong();
+        long size         = in.readLong();
+        long lastModified = in.readLong();
+        long creationDate = in.readLong();
+        boolean shared    = in.readBoolean();
+
+        FileMetadata m = new FileMetadata(filename, checksum, owner, expiration, size);
+        m.setLastModified(lastModified);
+        m.setCreationDate(creationDate);
+        m.setShared(shared);
+        return m;
+    }
+
+    private static void writeNullable(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) out.writeUTF(value);
+    }
+
+    private static String readNullable(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+}
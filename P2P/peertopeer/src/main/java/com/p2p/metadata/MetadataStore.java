@@ -1,32 +1,55 @@
 package com.p2p.metadata;
 
+import com.p2p.network.FileTransferTCP;
+
 import java.io.File;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 
+/**
+ * Metadatos de los archivos locales, en memoria y persistidos en un índice
+ * (ver MetadataIndex) para que el arranque no recalcule el SHA-256 de los
+ * archivos que no cambiaron.
+ */
 public class MetadataStore {
+    private static final String INDEX_DIR = "metadata";
+
     private final Map<String, FileMetadata> metadataMap;
     private final Map<String, Long> accessTimes;
+    private final MetadataIndex index;
 
     public MetadataStore() {
+        this(INDEX_DIR);
+    }
+
+    public MetadataStore(String indexDir) {
         this.metadataMap = new ConcurrentHashMap<>();
         this.accessTimes = new ConcurrentHashMap<>();
+        this.index = new MetadataIndex(indexDir);
     }
 
     public void addMetadata(FileMetadata metadata) {
         if (metadata != null) {
             metadataMap.put(metadata.getFilename(), metadata);
             accessTimes.put(metadata.getFilename(), System.currentTimeMillis());
+            persist(metadata);
         }
     }
 
+    /** También sirve para persistir cambios hechos con los setters de FileMetadata. */
     public void updateMetadata(FileMetadata metadata) {
         if (metadata != null && metadataMap.containsKey(metadata.getFilename())) {
             metadataMap.put(metadata.getFilename(), metadata);
             accessTimes.put(metadata.getFilename(), System.currentTimeMillis());
+            persist(metadata);
         }
     }
 
+    private void persist(FileMetadata metadata) {
+        index.put(metadata);
+        if (index.needsCompaction()) index.compact(metadataMap.values());
+    }
+
     public FileMetadata getMetadata(String filename) {
         accessTimes.put(filename, System.currentTimeMillis());
         return metadataMap.get(filename);
@@ -35,6 +58,7 @@ public class MetadataStore {
     public void removeMetadata(String filename) {
         metadataMap.remove(filename);
         accessTimes.remove(filename);
+        index.remove(filename);
     }
 
     public boolean hasMetadata(String filename) {
@@ -54,15 +78,21 @@ public class MetadataStore {
                 .toList();
     }
 
+    /**
+     * Carga los archivos de shared/ y local/. Los que tienen el mismo tamaño y
+     * lastModified que en el índice se toman de ahí; solo el resto se rehashea
+     * (conservando TTL y dueño del índice). Al terminar se compacta el índice,
+     * lo que también descarta archivos que ya no existen.
+     */
     public void discoverFiles() {
+        Map<String, FileMetadata> indexed = index.load();
+        int[] counts = new int[2]; // {desde índice, recalculados}
+
         File sharedDir = new File("shared");
         if (sharedDir.exists() && sharedDir.isDirectory()) {
             for (File file : sharedDir.listFiles()) {
-                if (file.isFile()) {
-                    FileMetadata metadata = FileMetadata.fromFile(file);
-                    if (metadata != null) {
-                        addMetadata(metadata);
-                    }
+                if (file.isFile() && !FileTransferTCP.isPartialTransfer(file)) {
+                    discover(file, indexed, counts);
                 }
             }
         }
@@ -71,13 +101,33 @@ public class MetadataStore {
         if (localDir.exists() && localDir.isDirectory()) {
             for (File file : localDir.listFiles()) {
                 if (file.isFile() && !metadataMap.containsKey(file.getName())) {
-                    FileMetadata metadata = FileMetadata.fromFile(file);
-                    if (metadata != null) {
-                        addMetadata(metadata);
-                    }
+                    discover(file, indexed, counts);
                 }
             }
         }
+
+        index.compact(metadataMap.values());
+        System.out.println("✓ Metadatos: " + counts[0] + " desde índice, " + counts[1] + " recalculados");
+    }
+
+    private void discover(File file, Map<String, FileMetadata> indexed, int[] counts) {
+        FileMetadata metadata = indexed.get(file.getName());
+        if (metadata != null && metadata.getSize() == file.length()
+                && metadata.getLastModified() == file.lastModified()) {
+            counts[0]++;
+        } else {
+            FileMetadata fresh = FileMetadata.fromFile(file);
+            if (fresh == null) return;
+            if (metadata != null) {
+                fresh.setExpiration(metadata.getExpiration());
+                fresh.setOwner(metadata.getOwner());
+                fresh.setShared(metadata.isShared());
+            }
+            metadata = fresh;
+            counts[1]++;
+        }
+        metadataMap.put(metadata.getFilename(), metadata);
+        accessTimes.put(metadata.getFilename(), System.currentTimeMillis());
     }
 
     public Map<String, Object> getStats() {
@@ -93,5 +143,12 @@ public class MetadataStore {
     public void clear() {
         metadataMap.clear();
         accessTimes.clear();
+        index.compact(metadataMap.values());
+    }
+
+    /** Compacta el índice y cierra el log (al apagar el nodo). */
+    public void close() {
+        index.compact(metadataMap.values());
+        index.close();
     }
 }
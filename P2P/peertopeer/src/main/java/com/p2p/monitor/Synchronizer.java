@@ -4,6 +4,7 @@ import com.p2p.conflict.ConflictEntry;
 import com.p2p.conflict.ConflictRegistry;
 import com.p2p.metadata.FileMetadata;
 import com.p2p.metadata.MetadataStore;
+import com.p2p.network.FileTransferTCP;
 import com.p2p.network.Message;
 import com.p2p.network.MessageType;
 import com.p2p.network.TCPNetworkModule;
@@ -14,12 +15,35 @@ import com.p2p.utils.ThreadManager;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.*;
 import java.security.NoSuchAlgorithmException;
-import java.util.HashMap;
+import java.util.Iterator;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
-
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Detecta cambios en los archivos locales y los propaga a la red.
+ *
+ * Los cambios llegan por un WatchService sobre shared/ y local/: cada evento
+ * marca el archivo como pendiente y los pendientes se verifican juntos
+ * DEBOUNCE_MS después (una escritura larga genera muchos ENTRY_MODIFY).
+ * Solo se recalcula el SHA-256 si cambió el tamaño o el lastModified
+ * respecto a los metadatos.
+ *
+ * El recorrido completo se mantiene como reconciliación (eventos perdidos,
+ * OVERFLOW, sistemas de archivos sin notificaciones) cada RECONCILE_INTERVAL_S;
+ * si no hay WatchService se usa el intervalo original de FALLBACK_INTERVAL_S.
+ */
 public class Synchronizer {
+
+    private static final String[] WATCHED_DIRS = { "shared", "local" };
+    private static final long DEBOUNCE_MS          = 500;
+    private static final long RECONCILE_INTERVAL_S = 300;
+    private static final long FALLBACK_INTERVAL_S  = 30;
+
     private final MetadataStore metadataStore;
     private final ConflictRegistry conflictRegistry;
     private final ActiveCopies activeCopies;
@@ -28,7 +52,12 @@ public class Synchronizer {
     private final LogRegistry logRegistry;
     private final Map<String, Long> lastSyncTimes;
 
-    private boolean running;
+    // Archivos con eventos del WatchService pendientes de verificar
+    private final Set<String> pendingChanges = ConcurrentHashMap.newKeySet();
+    private final AtomicBoolean drainScheduled = new AtomicBoolean();
+    private WatchService watchService;
+
+    private volatile boolean running;
 
     public Synchronizer(MetadataStore metadataStore, ConflictRegistry conflictRegistry,
             ActiveCopies activeCopies, TCPNetworkModule networkModule,
@@ -39,16 +68,79 @@ public class Synchronizer {
         this.networkModule = networkModule;
         this.threadManager = threadManager;
         this.logRegistry = new LogRegistry();
-        this.lastSyncTimes = new HashMap<>();
+        this.lastSyncTimes = new ConcurrentHashMap<>();
         this.running = true;
     }
 
     public void start() {
         logRegistry.info("Synchronizer", "Sincronizador iniciado");
 
+        long interval = startWatcher() ? RECONCILE_INTERVAL_S : FALLBACK_INTERVAL_S;
         threadManager.getScheduler().scheduleAtFixedRate(
                 this::synchronizeAllFiles,
-                30, 30, TimeUnit.SECONDS);
+                interval, interval, TimeUnit.SECONDS);
+    }
+
+    // ── WatchService ─────────────────────────────────────────────────────
+
+    private boolean startWatcher() {
+        try {
+            watchService = FileSystems.getDefault().newWatchService();
+            for (String dir : WATCHED_DIRS) {
+                Path path = Paths.get(dir);
+                if (Files.isDirectory(path)) {
+                    path.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                            StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+                }
+            }
+        } catch (IOException | UnsupportedOperationException e) {
+            logRegistry.warning("Synchronizer",
+                    "WatchService no disponible, solo recorrido periódico: " + e.getMessage());
+            return false;
+        }
+        Thread watcher = new Thread(this::watchLoop, "sync-watcher");
+        watcher.setDaemon(true);
+        watcher.start();
+        return true;
+    }
+
+    private void watchLoop() {
+        while (running) {
+            WatchKey key;
+            try {
+                key = watchService.take();
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                break;
+            }
+            for (WatchEvent<?> event : key.pollEvents()) {
+                if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                    // Se perdieron eventos: reconciliar todo
+                    threadManager.executeTask(this::synchronizeAllFiles);
+                    continue;
+                }
+                Path name = (Path) event.context();
+                if (!FileTransferTCP.isPartialTransfer(name.toFile()))
+                    pendingChanges.add(name.toString());
+            }
+            key.reset();
+
+            if (!pendingChanges.isEmpty() && drainScheduled.compareAndSet(false, true)) {
+                threadManager.getScheduler().schedule(this::drainChanges, DEBOUNCE_MS, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    /** Verifica los archivos con eventos acumulados durante el debounce. */
+    private void drainChanges() {
+        drainScheduled.set(false);
+        Iterator<String> it = pendingChanges.iterator();
+        while (it.hasNext()) {
+            String filename = it.next();
+            it.remove();
+            if (metadataStore.hasMetadata(filename) && checkForChanges(filename)) {
+                lastSyncTimes.put(filename, System.currentTimeMillis());
+            }
+        }
     }
 
     public boolean checkForChanges(String filename) {
@@ -60,28 +152,33 @@ public class Synchronizer {
             }
         }
 
-        try {
-            String currentChecksum = FileUtils.calculateChecksum(localFile);
-            long currentModified = localFile.lastModified();
-            long currentSize = localFile.length();
-
-            FileMetadata metadata = metadataStore.getMetadata(filename);
+        FileMetadata metadata = metadataStore.getMetadata(filename);
+        if (metadata == null) {
+            return false;
+        }
 
-            if (metadata != null) {
-                boolean checksumChanged = !currentChecksum.equals(metadata.getChecksum());
-                boolean sizeChanged = currentSize != metadata.getSize();
-                boolean modifiedChanged = currentModified > metadata.getLastModified();
+        long currentModified = localFile.lastModified();
+        long currentSize = localFile.length();
 
-                boolean changed = checksumChanged || sizeChanged || modifiedChanged;
+        // Mismo tamaño y lastModified: no se relee el archivo
+        if (currentSize == metadata.getSize() && currentModified == metadata.getLastModified()) {
+            return false;
+        }
 
-                if (changed) {
-                    logRegistry.info("Synchronizer",
-                            "Cambio detectado en archivo: " + filename);
-                    handleFileChange(filename, currentChecksum, currentSize, metadata);
-                }
+        try {
+            String currentChecksum = FileUtils.calculateChecksum(localFile);
 
-                return changed;
+            if (currentChecksum.equals(metadata.getChecksum())) {
+                // Solo cambió el lastModified (touch, copia): no hay nada que propagar
+                metadata.setLastModified(currentModified);
+                metadataStore.updateMetadata(metadata);
+                return false;
             }
+
+            logRegistry.info("Synchronizer",
+                    "Cambio detectado en archivo: " + filename);
+            handleFileChange(filename, currentChecksum, currentSize, currentModified, metadata);
+            return true;
         } catch (IOException | NoSuchAlgorithmException e) {
             logRegistry.error("Synchronizer",
                     "Error verificando cambios en " + filename + ": " + e.getMessage());
@@ -91,7 +188,7 @@ public class Synchronizer {
     }
 
     private void handleFileChange(String filename, String newChecksum, long newSize,
-            FileMetadata oldMetadata) {
+            long newModified, FileMetadata oldMetadata) {
         // Verificar conflictos
         if (conflictRegistry.hasConflict(filename)) {
             logRegistry.warning("Synchronizer",
@@ -107,6 +204,9 @@ public class Synchronizer {
                 oldMetadata.getOwner(),
                 oldMetadata.getExpiration(),
                 newSize);
+        updatedMetadata.setLastModified(newModified);
+        updatedMetadata.setCreationDate(oldMetadata.getCreationDate());
+        updatedMetadata.setShared(oldMetadata.isShared());
         metadataStore.updateMetadata(updatedMetadata);
 
         // Notificar a copias activas
@@ -124,7 +224,7 @@ public class Synchronizer {
     }
 
     private void synchronizeAllFiles() {
-        logRegistry.info("Synchronizer", "Iniciando sincronización completa");
+        logRegistry.info("Synchronizer", "Iniciando reconciliación completa");
 
         for (FileMetadata metadata : metadataStore.getAllMetadata()) {
             String filename = metadata.getFilename();
@@ -150,7 +250,7 @@ public class Synchronizer {
         notification.addPayload("filename", filename);
         notification.addPayload("action", "FILE_CHANGED");
 
-        networkModule.broadcast(notification);
+        networkModule.disseminate(notification);
     }
 
     private void propagateChange(String filename, String checksum, long size) {
@@ -161,7 +261,7 @@ public class Synchronizer {
         changeMsg.addPayload("size", size);
         changeMsg.addPayload("timestamp", System.currentTimeMillis());
 
-        networkModule.broadcast(changeMsg);
+        networkModule.disseminate(changeMsg);
         logRegistry.info("Synchronizer", "Cambio propagado para: " + filename);
     }
 
@@ -178,6 +278,12 @@ public class Synchronizer {
 
     public void stop() {
         running = false;
+        if (watchService != null) {
+            try {
+                watchService.close();
+            } catch (IOException ignored) {
+            }
+        }
         logRegistry.info("Synchronizer", "Sincronizador detenido");
     }
 }
\ No newline at end of file
@@ -45,7 +45,8 @@ public class TTLMonitor {
         localCache.cleanup();
         int removed = before - localCache.size();
         if (removed > 0)
-            logRegistry.info("TTLMonitor", "Eliminadas " + removed + " entradas expiradas de caché");
+            logRegistry.info("TTLMonitor", "Eliminadas " + removed + " entradas expiradas de caché "
+                    + localCache.getStats());
     }
 
     private void checkMetadataExpiration() {
@@ -99,6 +100,7 @@ public class TTLMonitor {
                 logRegistry.info("TTLMonitor",
                         "TTL actualizado para " + filename + ": " + newTTL + "ms");
             }
+            metadataStore.updateMetadata(metadata); // persistir en el índice
         }
     }
 
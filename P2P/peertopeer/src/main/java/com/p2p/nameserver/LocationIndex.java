@@ -0,0 +1,111 @@
+package com.p2p.nameserver;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Índice bidireccional de ubicaciones:
+ *
+ *   byFile → filename → peers que lo comparten (la vista que usa la GUI)
+ *   byPeer → peerId   → archivos que comparte
+ *
+ * Quitar un peer (desconexión o snapshot nuevo) cuesta O(archivos de ese
+ * peer), no O(archivos de la red). Los nombres se internan en un pool
+ * propio para que cada filename/peerId exista una sola vez en memoria
+ * aunque aparezca en muchos conjuntos.
+ *
+ * Escrituras serializadas; las lecturas de byFile no toman lock.
+ */
+class LocationIndex {
+
+    private final ConcurrentHashMap<String, Set<String>> byFile = new ConcurrentHashMap<>();
+    private final Map<String, Set<String>> byPeer = new HashMap<>();
+    private final Map<String, String> names = new HashMap<>(); // pool de internado
+
+    /** Vista filename → peers (solo lectura por convención). */
+    Map<String, Set<String>> byFile() {
+        return byFile;
+    }
+
+    synchronized void add(String peerId, String filename) {
+        String peer = intern(peerId);
+        String file = intern(filename);
+        if (byPeer.computeIfAbsent(peer, k -> new HashSet<>()).add(file))
+            byFile.computeIfAbsent(file, k -> ConcurrentHashMap.newKeySet()).add(peer);
+    }
+
+    synchronized void remove(String peerId, String filename) {
+        Set<String> files = byPeer.get(peerId);
+        if (files == null || !files.remove(filename)) return;
+        unlink(peerId, filename);
+        if (files.isEmpty()) {
+            byPeer.remove(peerId);
+            release(peerId);
+        }
+    }
+
+    /** Sustituye el catálogo de peerId: solo se tocan los archivos que cambian. */
+    synchronized void replace(String peerId, Collection<String> files) {
+        Set<String> incoming = new HashSet<>(files);
+        Set<String> current = byPeer.get(peerId);
+        if (current != null) {
+            for (Iterator<String> it = current.iterator(); it.hasNext(); ) {
+                String file = it.next();
+                if (!incoming.remove(file)) {
+                    it.remove();
+                    unlink(peerId, file);
+                }
+            }
+        }
+        // incoming = solo los nuevos
+        for (String file : incoming) add(peerId, file);
+        Set<String> now = byPeer.get(peerId);
+        if (now != null && now.isEmpty()) {
+            byPeer.remove(peerId);
+            release(peerId);
+        }
+    }
+
+    /** Elimina todas las ubicaciones de peerId. */
+    synchronized void removePeer(String peerId) {
+        Set<String> files = byPeer.remove(peerId);
+        if (files == null) return;
+        for (String file : files) unlink(peerId, file);
+        release(peerId);
+    }
+
+    synchronized Set<String> filesOf(String peerId) {
+        Set<String> files = byPeer.get(peerId);
+        return files == null ? Collections.emptySet() : new HashSet<>(files);
+    }
+
+    synchronized Map<String, Object> getStats() {
+        Map<String, Object> stats = new HashMap<>();
+        stats.put("files", byFile.size());
+        stats.put("peers", byPeer.size());
+        stats.put("internedNames", names.size());
+        return stats;
+    }
+
+    // ── Internos ─────────────────────────────────────────────────────────
+
+    private void unlink(String peerId, String filename) {
+        Set<String> owners = byFile.get(filename);
+        if (owners == null) return;
+        owners.remove(peerId);
+        if (owners.isEmpty()) {
+            byFile.remove(filename);
+            release(filename);
+        }
+    }
+
+    /** Saca name del pool si ya no lo usa ningún índice. */
+    private void release(String name) {
+        if (!byFile.containsKey(name) && !byPeer.containsKey(name)) names.remove(name);
+    }
+
+    private String intern(String name) {
+        String canonical = names.putIfAbsent(name, name);
+        return canonical != null ? canonical : name;
+    }
+}
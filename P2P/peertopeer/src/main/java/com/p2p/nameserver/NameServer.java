@@ -2,6 +2,8 @@ package com.p2p.nameserver;
 
 import com.p2p.conflict.ConflictRegistry;
 import com.p2p.cache.LocalCache;
+import com.p2p.cache.NegativeCache;
+import com.p2p.dht.DhtNode;
 import com.p2p.metadata.FileMetadata;
 import com.p2p.metadata.MetadataStore;
 import com.p2p.network.Message;
@@ -11,14 +13,21 @@ import com.p2p.repository.CopyRepository;
 import com.p2p.shared.ActiveCopies;
 import com.p2p.shared.LogRegistry;
 import com.p2p.shared.SharedList;
+import com.p2p.utils.BloomFilter;
 
 import java.io.Serializable;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class NameServer implements TCPNetworkModule.MessageListener {
 
+    // Ubicaciones alternativas que viajan en una respuesta no autoritativa
+    private static final int MAX_RANKED_OWNERS = 4;
+
     private final TCPNetworkModule networkModule;
     private final SharedList sharedList;
     private final MetadataStore metadataStore;
@@ -28,10 +37,23 @@ public class NameServer implements TCPNetworkModule.MessageListener {
     private final CopyRepository copyRepository; // ← repositorio Unit-of-Work
     private final LogRegistry logRegistry;
 
-    // filename → Set de peerIds que tienen ese archivo
-    private final ConcurrentHashMap<String, Set<String>> fileLocations = new ConcurrentHashMap<>();
+    // filename ↔ peerIds que lo comparten (índice en ambos sentidos)
+    private final LocationIndex locations = new LocationIndex();
+
+    // peerId → versión de su catálogo que tenemos indexada (anuncios incrementales)
+    private final ConcurrentHashMap<String, PeerCatalog> peerCatalogs = new ConcurrentHashMap<>();
+
+    // peerId → filtro de Bloom de su catálogo ("seguro que no lo tiene")
+    private final ConcurrentHashMap<String, BloomFilter> peerFilters = new ConcurrentHashMap<>();
+    // peerIds cuyo filtro (modo DHT) quedó atrasado hasta su próximo resumen
+    private final Set<String> staleFilters = ConcurrentHashMap.newKeySet();
+    private final AtomicBoolean summaryPending = new AtomicBoolean();
+
+    // filename → "nadie lo tiene" reciente (se invalida con PEER_ANNOUNCE)
+    private final NegativeCache negativeCache = new NegativeCache();
 
     private final RequestManager requestManager;
+    private DhtNode dht; // null salvo en modo DHT
     private final List<FileListListener> fileListListeners = new CopyOnWriteArrayList<>();
 
     public interface FileListListener {
@@ -49,13 +71,66 @@ public class NameServer implements TCPNetworkModule.MessageListener {
 
     // ── Getters ──────────────────────────────────────────────────────────
     public Map<String, Set<String>> getFileLocations() {
-        return fileLocations;
+        return locations.byFile();
+    }
+
+    /**
+     * Ubicaciones de filename de mejor a peor según RTT y carga
+     * (ver TCPNetworkModule.scorePeer). Vacía si no se conoce a nadie.
+     */
+    public List<String> rankOwners(String filename) {
+        Set<String> owners = locations.byFile().get(filename);
+        return owners == null ? new ArrayList<>() : networkModule.rankPeers(owners);
     }
 
     public LocalCache getLocalCache() {
         return localCache;
     }
 
+    public NegativeCache getNegativeCache() {
+        return negativeCache;
+    }
+
+    /**
+     * false solo si el filtro de peerId garantiza que no tiene filename. Un
+     * filtro que puede ir por detrás del catálogo (resincronización pendiente
+     * o cambios en modo DHT aún sin resumen) no descarta nada: su "seguro
+     * que no" podría ser un archivo recién añadido.
+     */
+    public boolean mightHave(String peerId, String filename) {
+        BloomFilter filter = peerFilters.get(peerId);
+        return filter == null || !isFilterCurrent(peerId) || filter.mightContain(filename);
+    }
+
+    private boolean isFilterCurrent(String peerId) {
+        if (staleFilters.contains(peerId))
+            return false;
+        PeerCatalog known = peerCatalogs.get(peerId);
+        return known == null || !known.resyncPending;
+    }
+
+    public DhtNode getDht() {
+        return dht;
+    }
+
+    /** Modo DHT: los nombres se resuelven en el índice distribuido, sin PEER_ANNOUNCE completos. */
+    public void setDht(DhtNode dht) {
+        this.dht = dht;
+    }
+
+    /** Resuelve el dueño de filename (null si nadie lo conoce). */
+    public CompletableFuture<FileInfo> lookup(String filename) {
+        return requestManager.lookup(filename);
+    }
+
+    public Map<String, Object> getLocationStats() {
+        return locations.getStats();
+    }
+
+    public Map<String, Object> getLookupStats() {
+        return requestManager.getLookupStats();
+    }
+
     public TCPNetworkModule getNetworkModule() {
         return networkModule;
     }
@@ -86,6 +161,7 @@ public class NameServer implements TCPNetworkModule.MessageListener {
         this.copyRepository = copyRepository;
         this.logRegistry = logRegistry;
         this.requestManager = new RequestManager(this);
+        sharedList.addChangeListener(this::announceChange);
     }
 
     public void start() {
@@ -132,9 +208,12 @@ public class NameServer implements TCPNetworkModule.MessageListener {
     @Override
     public void onPeerConnected(String peerId) {
         logRegistry.info("NameServer", "Peer conectado: " + peerId);
-        Message announce = new Message(MessageType.PEER_ANNOUNCE, networkModule.getNodeId());
-        announce.addPayload("sharedFiles", sharedList.getSharedFiles());
-        networkModule.sendMessage(announce, peerId);
+        if (dht != null) {
+            // El índice vive en la DHT; solo se envía el resumen del catálogo
+            networkModule.sendMessage(summaryAnnounce(), peerId);
+            return;
+        }
+        networkModule.sendMessage(snapshotAnnounce(), peerId);
         Message discovery = new Message(MessageType.PEER_DISCOVERY, networkModule.getNodeId());
         networkModule.sendMessage(discovery, peerId);
     }
@@ -142,36 +221,173 @@ public class NameServer implements TCPNetworkModule.MessageListener {
     @Override
     public void onPeerDisconnected(String peerId) {
         logRegistry.info("NameServer", "Peer desconectado: " + peerId);
-        fileLocations.entrySet().removeIf(entry -> {
-            entry.getValue().remove(peerId);
-            return entry.getValue().isEmpty();
-        });
+        peerCatalogs.remove(peerId);
+        peerFilters.remove(peerId);
+        staleFilters.remove(peerId);
+        locations.removePeer(peerId);
         notifyFileListChanged();
     }
 
     // ── Handlers ─────────────────────────────────────────────────────────
 
+    /**
+     * PEER_ANNOUNCE trae un snapshot (sharedFiles + version) o un delta
+     * (added/removed + version). Un delta que no sigue a la versión que
+     * tenemos indica un hueco: se pide el snapshot con PEER_DISCOVERY.
+     * Los anuncios sin version (nodos antiguos) se tratan como snapshot.
+     * Los snapshots traen además el filtro de Bloom del catálogo (bloom),
+     * que solo sustituye al anterior si el snapshot se aplica. En modo DHT
+     * llega solo el filtro, precedido de bloomStale al haber cambios.
+     */
     private void handlePeerAnnounce(Message message) {
         String peerId = message.getSenderId();
         @SuppressWarnings("unchecked")
         List<String> files = (List<String>) message.getPayload("sharedFiles");
-        if (files == null)
+        Object epochPayload = message.getPayload("epoch");
+        Object versionPayload = message.getPayload("version");
+        boolean versioned = epochPayload instanceof Number && versionPayload instanceof Number;
+        long epoch = versioned ? ((Number) epochPayload).longValue() : 0L;
+        long version = versioned ? ((Number) versionPayload).longValue() : 0L;
+
+        BloomFilter filter = readFilter(message);
+        if (files == null) {
+            if (versioned) {
+                applyDelta(message, peerId, epoch, version);
+            } else if (message.getPayload("bloomStale") != null) {
+                staleFilters.add(peerId); // cambió su catálogo; el resumen llega en breve
+            } else if (filter != null) {
+                peerFilters.put(peerId, filter); // resumen del modo DHT
+                staleFilters.remove(peerId);
+            }
             return;
+        }
+        if (versioned) {
+            PeerCatalog known = peerCatalogs.get(peerId);
+            if (known != null && !known.resyncPending && known.epoch == epoch && known.version >= version)
+                return; // ya indexado (llega uno por conexión y otro por PEER_DISCOVERY) o atrasado
+            peerCatalogs.put(peerId, new PeerCatalog(epoch, version));
+        } else {
+            peerCatalogs.remove(peerId);
+        }
+        peerFilters.put(peerId, filter != null ? filter : BloomFilter.of(files)); // nodo sin filtros: se calcula aquí
+
+        locations.replace(peerId, files);
+        for (String f : files)
+            negativeCache.invalidate(f);
+        logRegistry.info("NameServer", "Peer " + peerId + " comparte " + files.size() + " archivos");
+        notifyFileListChanged();
+    }
 
-        fileLocations.forEach((file, owners) -> owners.remove(peerId));
-        fileLocations.entrySet().removeIf(e -> e.getValue().isEmpty());
+    private void applyDelta(Message message, String peerId, long epoch, long version) {
+        PeerCatalog known = peerCatalogs.get(peerId);
+        if (known != null && known.epoch == epoch && version <= known.version)
+            return; // duplicado o anterior al snapshot
+        if (known == null || known.epoch != epoch || version != known.version + 1) {
+            requestResync(peerId, known);
+            return;
+        }
 
-        for (String f : files) {
-            fileLocations.computeIfAbsent(f, k -> ConcurrentHashMap.newKeySet()).add(peerId);
+        @SuppressWarnings("unchecked")
+        List<String> added = (List<String>) message.getPayload("added");
+        @SuppressWarnings("unchecked")
+        List<String> removed = (List<String>) message.getPayload("removed");
+        if (added != null) {
+            // Los lookups leen el filtro sin lock: se añade sobre una copia y se
+            // publica entera (antes de invalidar la caché negativa), o uno
+            // podría ver un bit a medias y saltarse al dueño
+            BloomFilter current = peerFilters.get(peerId);
+            if (current != null) {
+                BloomFilter filter = current.copy();
+                for (String f : added)
+                    filter.add(f); // las bajas no se quitan: solo falsos positivos
+                peerFilters.replace(peerId, current, filter);
+            }
+            for (String f : added) {
+                locations.add(peerId, f);
+                negativeCache.invalidate(f);
+            }
         }
-        logRegistry.info("NameServer", "Peer " + peerId + " comparte " + files.size() + " archivos");
+        if (removed != null) {
+            for (String f : removed)
+                locations.remove(peerId, f);
+        }
+        known.version = version;
         notifyFileListChanged();
     }
 
+    /** Hueco en las versiones: pedir el catálogo completo (una vez hasta recibirlo). */
+    private void requestResync(String peerId, PeerCatalog known) {
+        if (known == null) {
+            known = new PeerCatalog(-1, -1);
+            PeerCatalog prev = peerCatalogs.putIfAbsent(peerId, known);
+            if (prev != null) known = prev;
+        }
+        if (known.resyncPending)
+            return;
+        known.resyncPending = true;
+        logRegistry.warning("NameServer", "Hueco en anuncios de " + peerId + ", pidiendo catálogo completo");
+        networkModule.sendMessage(new Message(MessageType.PEER_DISCOVERY, networkModule.getNodeId()), peerId);
+    }
+
     private void handlePeerDiscovery(TCPNetworkModule.PeerConnection source) {
-        Message response = new Message(MessageType.PEER_ANNOUNCE, networkModule.getNodeId());
-        response.addPayload("sharedFiles", sharedList.getSharedFiles());
-        source.send(response);
+        source.send(snapshotAnnounce());
+    }
+
+    private Message snapshotAnnounce() {
+        SharedList.Snapshot snapshot = sharedList.snapshot();
+        Message announce = new Message(MessageType.PEER_ANNOUNCE, networkModule.getNodeId());
+        announce.addPayload("sharedFiles", snapshot.files);
+        announce.addPayload("epoch", snapshot.epoch);
+        announce.addPayload("version", snapshot.version);
+        addFilter(announce, snapshot.files);
+        return announce;
+    }
+
+    /** Anuncio con solo el filtro del catálogo (modo DHT). */
+    private Message summaryAnnounce() {
+        Message announce = new Message(MessageType.PEER_ANNOUNCE, networkModule.getNodeId());
+        addFilter(announce, sharedList.getSharedFiles());
+        return announce;
+    }
+
+    private static void addFilter(Message announce, List<String> files) {
+        BloomFilter filter = BloomFilter.of(files);
+        announce.addPayload("bloom", filter.toBytes());
+        announce.addPayload("bloomHashes", filter.getHashes());
+    }
+
+    private static BloomFilter readFilter(Message message) {
+        Object bits = message.getPayload("bloom");
+        Object hashes = message.getPayload("bloomHashes");
+        if (!(bits instanceof byte[]) || !(hashes instanceof Number)) return null;
+        try {
+            return new BloomFilter((byte[]) bits, ((Number) hashes).intValue());
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /** Alta/baja en nuestra SharedList → delta a todos los peers. */
+    private void announceChange(long version, String filename, boolean added) {
+        if (dht != null) {
+            // En modo DHT se publica en el índice; el filtro se reenvía agrupando
+            // cambios, avisando antes de que el actual ya no vale para descartar
+            if (summaryPending.compareAndSet(false, true)) {
+                Message stale = new Message(MessageType.PEER_ANNOUNCE, networkModule.getNodeId());
+                stale.addPayload("bloomStale", true);
+                networkModule.broadcast(stale);
+                networkModule.getThreadManager().getScheduler().schedule(() -> {
+                    summaryPending.set(false);
+                    networkModule.broadcast(summaryAnnounce());
+                }, 1, TimeUnit.SECONDS);
+            }
+            return;
+        }
+        Message delta = new Message(MessageType.PEER_ANNOUNCE, networkModule.getNodeId());
+        delta.addPayload("epoch", sharedList.getEpoch());
+        delta.addPayload("version", version);
+        delta.addPayload(added ? "added" : "removed", new ArrayList<>(List.of(filename)));
+        networkModule.broadcast(delta);
     }
 
     private void handleFileRequest(Message message, TCPNetworkModule.PeerConnection source) {
@@ -239,12 +455,14 @@ public class NameServer implements TCPNetworkModule.MessageListener {
         }
 
         // ── CASO 2: CONOCEMOS AL DUEÑO → respuesta NO autoritativa con IP ──
-        Set<String> owners = fileLocations.get(filename);
-        if (owners != null && !owners.isEmpty()) {
-            String ownerPeer = owners.iterator().next();
+        // owner = el mejor según RTT y carga; owners = ranking para repartir descargas
+        List<String> owners = rankOwners(filename);
+        if (!owners.isEmpty()) {
+            String ownerPeer = owners.get(0);
             Message resp = new Message(MessageType.NAME_RESPONSE, networkModule.getNodeId());
             resp.addPayload("filename", filename);
             resp.addPayload("owner", ownerPeer);
+            resp.addPayload("owners", new ArrayList<>(owners.subList(0, Math.min(MAX_RANKED_OWNERS, owners.size()))));
             resp.addPayload("authoritative", false);
             resp.addPayload("requestId", requestId);
             resp.addPayload("timestamp", System.currentTimeMillis());
@@ -290,6 +508,18 @@ public class NameServer implements TCPNetworkModule.MessageListener {
         logRegistry.info("NameServer", "Logs enviados a: " + source.getPeerId());
     }
 
+    // ── PeerCatalog ───────────────────────────────────────────────────────
+    private static class PeerCatalog {
+        final long epoch;
+        volatile long version;
+        volatile boolean resyncPending;
+
+        PeerCatalog(long epoch, long version) {
+            this.epoch = epoch;
+            this.version = version;
+        }
+    }
+
     // ── FileInfo DTO ──────────────────────────────────────────────────────
     public static class FileInfo {
         private final String filename, owner;
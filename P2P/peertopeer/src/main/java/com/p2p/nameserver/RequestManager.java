@@ -1,52 +1,83 @@
 package com.p2p.nameserver;
 
+import com.p2p.cache.LocalCache;
+import com.p2p.dht.DhtNode;
 import com.p2p.network.Message;
 import com.p2p.network.MessageType;
 import com.p2p.network.TCPNetworkModule;
 import com.p2p.shared.LogRegistry;
+import com.p2p.utils.HashedWheelTimer;
+import com.p2p.utils.LatencyHistogram;
 
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
 
 public class RequestManager {
 
+    /** Peers consultados a la vez en modo fan-out (-Dp2p.lookup.fanout, 0 = todos). */
+    public static final int FANOUT_WIDTH = Integer.getInteger("p2p.lookup.fanout", 0);
+    /** Modo por defecto de lookup(): "fanout" o "serial" (-Dp2p.lookup.mode). */
+    public static final boolean FANOUT_DEFAULT =
+            !"serial".equalsIgnoreCase(System.getProperty("p2p.lookup.mode", "fanout"));
+    private static final long QUERY_TIMEOUT_MS = 5_000;
+
     private final NameServer nameServer;
     private final Map<String, PendingRequest> pendingRequests;
-    private final ScheduledExecutorService scheduler;
+    private final HashedWheelTimer timer;
     private final LogRegistry logRegistry;
 
+    // Latencia de las búsquedas en red, por modo, para compararlos
+    private final LatencyHistogram serialLatency = new LatencyHistogram();
+    private final LatencyHistogram fanoutLatency = new LatencyHistogram();
+    private final LongAdder cancelledQueries = new LongAdder();
+    private final LongAdder coalescedLookups = new LongAdder();
+    private final LongAdder skippedByFilter = new LongAdder();
+
+    // filename → búsqueda en red en curso (single-flight)
+    private final Map<String, Lookup> inFlight = new ConcurrentHashMap<>();
+
     public RequestManager(NameServer nameServer) {
         this.nameServer      = nameServer;
         this.pendingRequests = new ConcurrentHashMap<>();
-        this.scheduler       = Executors.newScheduledThreadPool(2);
+        this.timer           = nameServer.getNetworkModule().getThreadManager().getTimer();
         this.logRegistry     = new LogRegistry();
     }
 
     public void start() {
-        scheduler.scheduleAtFixedRate(this::cleanupExpiredRequests, 30, 30, TimeUnit.SECONDS);
         logRegistry.info("RequestManager", "Gestor de peticiones iniciado");
     }
 
+    /**
+     * Petición de resolución de otro peer: se une a la búsqueda en vuelo para
+     * ese nombre (o la inicia) y responde a source con el resultado.
+     */
     public String registerRequest(String filename, TCPNetworkModule.PeerConnection source) {
         String requestId = UUID.randomUUID().toString();
-        PendingRequest request = new PendingRequest(requestId, filename, source);
-        pendingRequests.put(requestId, request);
         logRegistry.info("RequestManager", "Petición registrada: " + filename + " [ID: " + requestId + "]");
-        scheduler.schedule(() -> handleTimeout(requestId), 5, TimeUnit.SECONDS);
+
+        CompletableFuture<NameServer.FileInfo> local = resolveLocally(filename);
+        if (local != null) {
+            answerSource(source, requestId, filename, local.join(), null);
+            return requestId;
+        }
+        Lookup lookup = acquire(filename, FANOUT_DEFAULT);
+        lookup.future.whenComplete((info, error) ->
+                answerSource(source, requestId, filename, info, lookup.response));
         return requestId;
     }
 
     /**
-     * Procesa una NAME_RESPONSE.
+     * Procesa una NAME_RESPONSE de una de nuestras consultas.
      *
-     * - Si es AUTORITATIVA: actualiza caché y reenvía al solicitante original.
-     * - Si es NO AUTORITATIVA: hace follow-up directamente al dueño real.
+     * - Si es AUTORITATIVA: actualiza caché y completa la búsqueda.
+     * - Si es NO AUTORITATIVA: consulta directamente al dueño real.
      */
     public void handleResponse(Message message, TCPNetworkModule.PeerConnection source) {
         String requestId = (String) message.getPayload("requestId");
         if (requestId == null) return;
 
-        PendingRequest request = pendingRequests.remove(requestId);
+        PendingRequest request = untrack(requestId);
         if (request == null) return;
 
         boolean authoritative = Boolean.TRUE.equals(message.getPayload("authoritative"));
@@ -55,155 +86,312 @@ public class RequestManager {
 
         logRegistry.info("RequestManager", "Respuesta para '" + filename
                 + "' [Autoritativa: " + authoritative + "]");
-
-        if (authoritative) {
-            // Actualizar caché con la respuesta autoritativa
-            long ts = message.getTimestamp();
-            NameServer.FileInfo info = new NameServer.FileInfo(filename, owner, ts + 3_600_000L);
-            nameServer.getLocalCache().put(filename, info);
-
-            // Reenviar respuesta al solicitante original
-            forwardToSource(request.getSource(), message);
-            logRegistry.info("RequestManager", "Caché actualizada y respuesta reenviada para: " + filename);
-
-        } else {
-            // ── RESPUESTA NO AUTORITATIVA ──
-            // Necesitamos preguntar directamente al dueño real
-            logRegistry.info("RequestManager", "Respuesta no-autoritativa. Follow-up al dueño: " + owner);
-            followUpWithOwner(filename, owner, request);
-        }
+        handleLookupResponse(request, authoritative, owner, message);
     }
 
     /**
-     * Envía una NAME_QUERY directamente al peer dueño.
-     * Si el dueño responde autoritativamente, la respuesta se propaga al
-     * solicitante original a través del RequestManager.
+     * Guarda en caché una respuesta autoritativa; caduca según su "ttl"
+     * (relativo, para no depender del reloj del dueño; 0 = para siempre).
      */
-    private void followUpWithOwner(String filename, String ownerPeerId, PendingRequest originalRequest) {
-        TCPNetworkModule nm = nameServer.getNetworkModule();
-
-        if (!nm.isConnectedTo(ownerPeerId)) {
-            logRegistry.warning("RequestManager", "Dueño no conectado: " + ownerPeerId
-                    + " para " + filename + ". Enviando NACK al solicitante.");
-            sendNackToSource(originalRequest, filename, "Dueño del archivo no conectado");
-            return;
-        }
-
-        String newId = UUID.randomUUID().toString();
-        // El nuevo pending tiene como "source" el mismo solicitante original
-        PendingRequest followUp = new PendingRequest(newId, filename, originalRequest.getSource());
-        followUp.addTriedPeer(ownerPeerId);
-        pendingRequests.put(newId, followUp);
-
-        Message query = new Message(MessageType.NAME_QUERY, nm.getNodeId());
-        query.addPayload("filename",  filename);
-        query.addPayload("requestId", newId);
-        nm.sendMessage(query, ownerPeerId);
-
-        logRegistry.info("RequestManager", "Follow-up enviado al dueño " + ownerPeerId
-                + " para: " + filename + " [nuevo ID: " + newId + "]");
-
-        // Timeout para este follow-up
-        scheduler.schedule(() -> handleTimeout(newId), 5, TimeUnit.SECONDS);
+    private NameServer.FileInfo cacheAuthoritative(String filename, String owner, Message message) {
+        nameServer.getNegativeCache().invalidate(filename);
+
+        Object ttlPayload = message.getPayload("ttl");
+        long ttl = ttlPayload instanceof Number ? ((Number) ttlPayload).longValue() : 0L;
+        if (ttl <= 0) ttl = LocalCache.DEFAULT_TTL_MS;
+        NameServer.FileInfo info = new NameServer.FileInfo(filename, owner,
+                System.currentTimeMillis() + ttl);
+        nameServer.getLocalCache().put(filename, info);
+        return info;
     }
 
     /**
-     * Procesa un NACK_RESPONSE.
-     * Intenta con otro peer de la red. Si no quedan peers, envía NACK final.
+     * Procesa un NACK_RESPONSE: la búsqueda sigue con otro peer y, si no
+     * quedan, termina como "no encontrado".
      */
     public void handleNack(Message message) {
         String requestId = (String) message.getPayload("requestId");
         if (requestId == null) return;
 
-        PendingRequest request = pendingRequests.remove(requestId);
+        PendingRequest request = untrack(requestId);
         if (request == null) return;
 
-        String filename = (String) message.getPayload("filename");
-        logRegistry.info("RequestManager", "NACK recibido para: " + filename
+        logRegistry.info("RequestManager", "NACK recibido para: " + request.getFilename()
                 + ". Intentando con otro peer...");
+        queryFailed(request.lookup, requestId, true);
+    }
+
+    // ── Búsqueda local (CompletableFuture) ───────────────────────────────
+
+    public CompletableFuture<NameServer.FileInfo> lookup(String filename) {
+        return lookup(filename, FANOUT_DEFAULT);
+    }
+
+    /**
+     * Resuelve el dueño de filename. Se completa con null si nadie lo conoce
+     * (o nadie contestó); solo los "no" explícitos van a la caché negativa.
+     *
+     * - serial:  NAME_QUERY a un peer cada vez; tras NACK/timeout, el siguiente.
+     * - fan-out: NAME_QUERY a FANOUT_WIDTH peers (o todos) a la vez; gana la
+     *            primera respuesta autoritativa y el resto se cancela.
+     *
+     * Una respuesta no autoritativa lanza además una consulta directa al dueño.
+     *
+     * Single-flight: las búsquedas concurrentes del mismo nombre comparten una
+     * única búsqueda en red (en el modo de la primera). Cada llamador recibe su
+     * propio future; cancelarlo solo cancela las consultas si era el último.
+     */
+    public CompletableFuture<NameServer.FileInfo> lookup(String filename, boolean fanout) {
+        CompletableFuture<NameServer.FileInfo> local = resolveLocally(filename);
+        if (local != null) return local;
+
+        Lookup lookup = acquire(filename, fanout);
+        CompletableFuture<NameServer.FileInfo> mine = lookup.future.copy();
+        mine.whenComplete((info, error) -> {
+            if (mine.isCancelled()) lookup.release();
+        });
+        return mine;
+    }
 
+    /** Resolución sin red (somos dueños, caché, caché negativa); null si hay que preguntar. */
+    private CompletableFuture<NameServer.FileInfo> resolveLocally(String filename) {
         TCPNetworkModule nm = nameServer.getNetworkModule();
-        Set<String> tried = request.getTriedPeers();
+        if (nameServer.getSharedListRef().isShared(filename)) {
+            return CompletableFuture.completedFuture(new NameServer.FileInfo(filename, nm.getNodeId(),
+                    System.currentTimeMillis() + LocalCache.DEFAULT_TTL_MS));
+        }
+        NameServer.FileInfo cached = nameServer.getLocalCache().get(filename);
+        if (cached != null) return CompletableFuture.completedFuture(cached);
+        if (nameServer.getNegativeCache().isNotFound(filename))
+            return CompletableFuture.completedFuture(null);
+        return null;
+    }
+
+    /** Se une a la búsqueda en vuelo de filename o inicia una nueva (con un waiter más). */
+    private Lookup acquire(String filename, boolean fanout) {
+        int width = fanout ? (FANOUT_WIDTH <= 0 ? Integer.MAX_VALUE : FANOUT_WIDTH) : 1;
+        Lookup created = new Lookup(filename, width, fanout);
+        for (;;) {
+            Lookup existing = inFlight.putIfAbsent(filename, created);
+            if (existing == null) break;
+            if (existing.join()) {
+                coalescedLookups.increment();
+                return existing;
+            }
+            inFlight.remove(filename, existing); // terminando: no unirse
+        }
+        created.join();
+        created.future.whenComplete((info, error) -> {
+            if (created.future.isCancelled()) finishLookup(created, null, false);
+        });
+
+        DhtNode dht = nameServer.getDht();
+        if (dht == null) {
+            dispatch(created);
+        } else {
+            // Modo DHT: solo se pregunta a los dueños que publica el índice
+            dht.findOwners(filename).whenComplete((owners, error) -> {
+                synchronized (created) {
+                    created.candidates = owners != null ? owners : Collections.emptySet();
+                    if (owners == null) created.inconclusive = true; // fallo de la DHT, no un "no"
+                }
+                dispatch(created);
+            });
+        }
+        return created;
+    }
+
+    /** Histogramas de latencia de lookup() por modo. */
+    public Map<String, Object> getLookupStats() {
+        Map<String, Object> stats = new HashMap<>();
+        stats.put("mode", FANOUT_DEFAULT ? "fanout" : "serial");
+        stats.put("fanoutWidth", FANOUT_WIDTH <= 0 ? "all" : FANOUT_WIDTH);
+        stats.put("serial", serialLatency.getStats());
+        stats.put("fanout", fanoutLatency.getStats());
+        stats.put("cancelledQueries", cancelledQueries.sum());
+        stats.put("coalescedLookups", coalescedLookups.sum());
+        stats.put("skippedByFilter", skippedByFilter.sum());
+        stats.put("inFlight", inFlight.size());
+        return stats;
+    }
 
-        // Buscar un peer que no hayamos consultado aún
-        for (String peerId : nm.getPeers().keySet()) {
-            if (tried.contains(peerId)) continue;
+    /** Completa las consultas en vuelo hasta width con peers aún no consultados. */
+    private void dispatch(Lookup lookup) {
+        boolean exhausted, notFound;
+        synchronized (lookup) {
+            if (lookup.finished) return;
+            TCPNetworkModule nm = nameServer.getNetworkModule();
+            Collection<String> peers = lookup.candidates != null ? lookup.candidates : nm.getPeers().keySet();
+            for (String peerId : peers) {
+                if (lookup.outstanding.size() >= lookup.width) break;
+                if (!nm.isConnectedTo(peerId) || nm.isSuspect(peerId)) {
+                    lookup.inconclusive = true; // podría tenerlo y no se le pregunta
+                    continue;
+                }
+                if (!lookup.triedPeers.add(peerId)) continue;
+                // Su filtro de Bloom dice "seguro que no": ni se le pregunta
+                if (!nameServer.mightHave(peerId, lookup.filename)) {
+                    skippedByFilter.increment();
+                    lookup.ruledOut++;
+                    continue;
+                }
+                sendLookupQuery(lookup, peerId);
+            }
+            exhausted = lookup.outstanding.isEmpty();
+            notFound = lookup.isDefinitelyNotFound();
+        }
+        // Sin consultas pendientes: null siempre, pero a la caché negativa solo un "no" real
+        if (exhausted) finishLookup(lookup, null, notFound);
+    }
 
-            String newId = UUID.randomUUID().toString();
-            PendingRequest retry = new PendingRequest(newId, filename, request.getSource());
-            retry.addAllTriedPeers(tried);
-            retry.addTriedPeer(peerId);
-            pendingRequests.put(newId, retry);
+    /** Llamar con el lock de lookup tomado. */
+    private void sendLookupQuery(Lookup lookup, String peerId) {
+        TCPNetworkModule nm = nameServer.getNetworkModule();
+        String id = UUID.randomUUID().toString();
+        track(new PendingRequest(id, lookup.filename, lookup));
+        lookup.outstanding.add(id);
+
+        Message msg = new Message(MessageType.NAME_QUERY, nm.getNodeId());
+        msg.addPayload("filename",  lookup.filename);
+        msg.addPayload("requestId", id);
+        nm.sendMessage(msg, peerId);
+    }
 
-            Message query = new Message(MessageType.NAME_QUERY, nm.getNodeId());
-            query.addPayload("filename",  filename);
-            query.addPayload("requestId", newId);
-            nm.sendMessage(query, peerId);
+    private void handleLookupResponse(PendingRequest request, boolean authoritative,
+            String owner, Message message) {
+        Lookup lookup = request.lookup;
+        if (authoritative) {
+            lookup.response = message;
+            finishLookup(lookup, cacheAuthoritative(lookup.filename, owner, message), false);
+            return;
+        }
+        // No autoritativa: preguntar al mejor dueño (según nuestras medidas) aún no preguntado
+        TCPNetworkModule nm = nameServer.getNetworkModule();
+        synchronized (lookup) {
+            lookup.outstanding.remove(request.getId());
+            lookup.inconclusive = true; // alguien cree que existe: su "no" no es definitivo
+            if (!lookup.finished) {
+                for (String candidate : nm.rankPeers(ownersOf(owner, message))) {
+                    if (nm.isConnectedTo(candidate) && !nm.isSuspect(candidate)
+                            && lookup.triedPeers.add(candidate)) {
+                        sendLookupQuery(lookup, candidate);
+                        break;
+                    }
+                }
+            }
+        }
+        dispatch(lookup);
+    }
 
-            logRegistry.info("RequestManager", "NACK – Reintentando con: " + peerId
-                    + " para '" + filename + "' [nuevo ID: " + newId + "]");
+    /** Lista "owners" de la respuesta o, en nodos anteriores, solo "owner". */
+    private static List<String> ownersOf(String owner, Message message) {
+        List<String> owners = new ArrayList<>();
+        Object ranked = message.getPayload("owners");
+        if (ranked instanceof List<?>)
+            for (Object o : (List<?>) ranked)
+                if (o instanceof String) owners.add((String) o);
+        if (owner != null && !owners.contains(owner)) owners.add(0, owner);
+        return owners;
+    }
 
-            scheduler.schedule(() -> handleTimeout(newId), 5, TimeUnit.SECONDS);
-            return; // esperamos esta respuesta
+    /** NACK o timeout de una consulta: se sustituye por el siguiente peer, si queda. */
+    private void queryFailed(Lookup lookup, String requestId, boolean nacked) {
+        synchronized (lookup) {
+            lookup.outstanding.remove(requestId);
+            if (nacked) lookup.nacks++;
+            else lookup.inconclusive = true;
         }
+        dispatch(lookup);
+    }
 
-        // No quedan peers que consultar
-        logRegistry.info("RequestManager", "Ningún servidor en la red conoce: " + filename);
-        sendNackToSource(request, filename, "Ningún servidor en la red conoce el archivo");
+    /** Primera resolución gana: cancela las consultas restantes y completa el future. */
+    private void finishLookup(Lookup lookup, NameServer.FileInfo info, boolean notFound) {
+        int cancelled;
+        synchronized (lookup) {
+            if (lookup.finished) return;
+            lookup.finished = true;
+            inFlight.remove(lookup.filename, lookup);
+            cancelled = lookup.outstanding.size();
+            for (String id : lookup.outstanding) untrack(id);
+            lookup.outstanding.clear();
+        }
+        cancelledQueries.add(cancelled);
+        if (lookup.future.isCancelled()) return;
+
+        long ms = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - lookup.startNanos);
+        (lookup.fanout ? fanoutLatency : serialLatency).record(ms);
+        if (notFound) nameServer.getNegativeCache().put(lookup.filename);
+
+        logRegistry.info("RequestManager", "Lookup " + (lookup.fanout ? "fan-out" : "serial")
+                + " '" + lookup.filename + "' → " + (info != null ? info.getOwner() : "no encontrado")
+                + " en " + ms + " ms (" + lookup.triedPeers.size() + " consultados, "
+                + cancelled + " cancelados, " + lookup.waiters + " esperando)");
+        lookup.future.complete(info);
     }
 
     // ── Timeout ──────────────────────────────────────────────────────────
 
+    /** Registra la petición con su timeout en la rueda compartida. */
+    private void track(PendingRequest request) {
+        String id = request.getId();
+        pendingRequests.put(id, request);
+        request.timeout = timer.schedule(() -> handleTimeout(id), QUERY_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /** Saca la petición y cancela su timeout (llegó respuesta o se descarta). */
+    private PendingRequest untrack(String requestId) {
+        PendingRequest request = pendingRequests.remove(requestId);
+        if (request != null && request.timeout != null) request.timeout.cancel();
+        return request;
+    }
+
     private void handleTimeout(String requestId) {
         PendingRequest request = pendingRequests.remove(requestId);
         if (request == null) return;
 
         logRegistry.warning("RequestManager", "Timeout para solicitud: " + requestId
                 + " [" + request.getFilename() + "]");
-        sendNackToSource(request, request.getFilename(),
-                "Timeout – No se encontró respuesta en la red");
+        queryFailed(request.lookup, requestId, false);
     }
 
     // ── Utilidades ────────────────────────────────────────────────────────
 
-    private void forwardToSource(TCPNetworkModule.PeerConnection source, Message message) {
-        try {
-            if (source != null && source.isConnected()) source.send(message);
-        } catch (Exception e) {
-            logRegistry.error("RequestManager", "Error reenviando respuesta: " + e.getMessage());
-        }
-    }
-
-    private void sendNackToSource(PendingRequest request, String filename, String reason) {
+    /** Responde a un peer que nos pidió resolver filename. */
+    private void answerSource(TCPNetworkModule.PeerConnection source, String requestId,
+            String filename, NameServer.FileInfo info, Message authoritativeResponse) {
+        if (source == null || !source.isConnected()) return;
         try {
             TCPNetworkModule nm = nameServer.getNetworkModule();
-            Message nack = new Message(MessageType.NACK_RESPONSE, nm.getNodeId());
-            nack.addPayload("filename", filename);
-            nack.addPayload("requestId", request.getId());
-            nack.addPayload("reason", reason);
-            TCPNetworkModule.PeerConnection src = request.getSource();
-            if (src != null && src.isConnected()) src.send(nack);
+            Message reply;
+            if (info == null) {
+                reply = new Message(MessageType.NACK_RESPONSE, nm.getNodeId());
+                reply.addPayload("filename", filename);
+                reply.addPayload("reason", "Ningún servidor en la red conoce el archivo");
+            } else {
+                reply = new Message(MessageType.NAME_RESPONSE, nm.getNodeId());
+                if (authoritativeResponse != null) {
+                    // La respuesta del dueño, compartida por todos los que esperaban
+                    authoritativeResponse.getPayload().forEach(reply::addPayload);
+                } else {
+                    reply.addPayload("filename", filename);
+                    reply.addPayload("owner", info.getOwner());
+                    reply.addPayload("authoritative", nm.getNodeId().equals(info.getOwner()));
+                    reply.addPayload("ttl", info.getTimestamp() - System.currentTimeMillis());
+                }
+                reply.addPayload("timestamp", System.currentTimeMillis());
+            }
+            reply.addPayload("requestId", requestId);
+            source.send(reply);
         } catch (Exception e) {
-            logRegistry.error("RequestManager", "Error enviando NACK: " + e.getMessage());
+            logRegistry.error("RequestManager", "Error respondiendo a " + source.getPeerId() + ": " + e.getMessage());
         }
     }
 
-    private void cleanupExpiredRequests() {
-        long now = System.currentTimeMillis();
-        int before = pendingRequests.size();
-        pendingRequests.entrySet().removeIf(e -> now - e.getValue().getTimestamp() > 15_000);
-        int removed = before - pendingRequests.size();
-        if (removed > 0)
-            logRegistry.info("RequestManager", "Limpiadas " + removed + " solicitudes expiradas");
-    }
-
     public void shutdown() {
-        scheduler.shutdown();
-        try {
-            if (!scheduler.awaitTermination(5, TimeUnit.SECONDS)) scheduler.shutdownNow();
-        } catch (InterruptedException e) {
-            scheduler.shutdownNow();
-        }
+        for (PendingRequest request : pendingRequests.values())
+            if (request.timeout != null) request.timeout.cancel();
+        for (Lookup lookup : inFlight.values())
+            lookup.future.cancel(false);
         pendingRequests.clear();
         logRegistry.info("RequestManager", "Gestor de peticiones detenido");
     }
@@ -213,24 +401,68 @@ public class RequestManager {
     private static class PendingRequest {
         private final String id;
         private final String filename;
-        private final TCPNetworkModule.PeerConnection source;
-        private final long timestamp;
-        /** Peers ya consultados para este archivo (evita ciclos). */
-        private final Set<String> triedPeers = new HashSet<>();
-
-        public PendingRequest(String id, String filename, TCPNetworkModule.PeerConnection source) {
-            this.id        = id;
-            this.filename  = filename;
-            this.source    = source;
-            this.timestamp = System.currentTimeMillis();
+        /** Búsqueda a la que pertenece esta consulta. */
+        private final Lookup lookup;
+        private HashedWheelTimer.Timeout timeout;
+
+        public PendingRequest(String id, String filename, Lookup lookup) {
+            this.id       = id;
+            this.filename = filename;
+            this.lookup   = lookup;
+        }
+
+        public String getId()       { return id; }
+        public String getFilename() { return filename; }
+    }
+
+    // ── Lookup ────────────────────────────────────────────────────────────
+
+    private static class Lookup {
+        final String filename;
+        final int width;
+        final boolean fanout;
+        final long startNanos = System.nanoTime();
+        final CompletableFuture<NameServer.FileInfo> future = new CompletableFuture<>();
+        // Protegidos por el lock del propio Lookup
+        final Set<String> triedPeers = new HashSet<>();
+        final Set<String> outstanding = new HashSet<>(); // requestIds en vuelo
+        Collection<String> candidates; // dueños según la DHT (null = todos los peers)
+        boolean finished;
+        int waiters;
+        // Para la caché negativa: solo cuenta como "no existe" si todos los
+        // consultados dijeron NACK o su filtro lo descartó; timeouts, peers
+        // saltados, fallos de la DHT o respuestas no autoritativas no lo son
+        int nacks;
+        int ruledOut;
+        boolean inconclusive;
+        /** Respuesta autoritativa ganadora (para reenviarla a los peers que esperan). */
+        volatile Message response;
+
+        Lookup(String filename, int width, boolean fanout) {
+            this.filename = filename;
+            this.width    = width;
+            this.fanout   = fanout;
         }
 
-        public String getId()             { return id; }
-        public String getFilename()       { return filename; }
-        public TCPNetworkModule.PeerConnection getSource() { return source; }
-        public long getTimestamp()        { return timestamp; }
-        public Set<String> getTriedPeers() { return triedPeers; }
-        public void addTriedPeer(String p) { triedPeers.add(p); }
-        public void addAllTriedPeers(Set<String> peers) { triedPeers.addAll(peers); }
+        /** Llamar con el lock tomado y sin consultas en vuelo. */
+        boolean isDefinitelyNotFound() {
+            return !inconclusive && nacks + ruledOut > 0;
+        }
+
+        /** Añade un waiter; false si la búsqueda ya terminó. */
+        synchronized boolean join() {
+            if (finished) return false;
+            waiters++;
+            return true;
+        }
+
+        /** Un waiter canceló; si era el último, se cancela la búsqueda. */
+        void release() {
+            boolean last;
+            synchronized (this) {
+                last = --waiters == 0 && !finished;
+            }
+            if (last) future.cancel(false);
+        }
     }
 }
@@ -0,0 +1,417 @@
+package com.p2p.network;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Codec binario compacto para Message.
+ *
+ * FRAME:  [int longitud][cuerpo]
+ * CUERPO: [byte ordinal MessageType]
+ *         [id: byte 1 + 2 long (UUID)  |  byte 0 + string]
+ *         [senderId internado][long timestamp]
+ *         [varint nº entradas] { [clave internada][valor tipado] }*
+ *
+ * Las claves del payload y el senderId se "internan" por conexión: la primera
+ * vez viajan como texto y se les asigna un índice; después solo viaja el índice.
+ * Ambos extremos construyen la misma tabla porque el stream TCP es ordenado.
+ *
+ * Los valores llevan una etiqueta de tipo; lo que no tenga representación
+ * propia se serializa con Java dentro del frame (TAG_SERIALIZED).
+ *
+ * Con el codec "binary2" los HEARTBEAT van en un frame fijo de 15 bytes:
+ *   [int 11][byte HB_PING | HB_ECHO][long nanoTime][short load]
+ * sin id, sin timestamp y con el emisor implícito (el del último frame
+ * completo, que en una conexión siempre es el mismo peer).
+ */
+public class BinaryMessageCodec implements MessageCodec {
+
+    /** Límite defensivo del tamaño de frame (64 MB). */
+    public static final int MAX_FRAME_SIZE = 64 * 1024 * 1024;
+    /** Máximo de cadenas internadas por dirección. */
+    private static final int MAX_INTERNED = 1024;
+
+    private static final byte TAG_NULL       = 0;
+    private static final byte TAG_STRING     = 1;
+    private static final byte TAG_TRUE       = 2;
+    private static final byte TAG_FALSE      = 3;
+    private static final byte TAG_INT        = 4;
+    private static final byte TAG_LONG       = 5;
+    private static final byte TAG_DOUBLE     = 6;
+    private static final byte TAG_BYTES      = 7;
+    private static final byte TAG_LIST       = 8;
+    private static final byte TAG_MAP        = 9;
+    private static final byte TAG_SERIALIZED = 10;
+
+    private static final MessageType[] TYPES = MessageType.values();
+
+    // Primer byte de un heartbeat compacto (fuera del rango de ordinales)
+    private static final int HB_PING = 0xFF;
+    private static final int HB_ECHO = 0xFE;
+
+    private final DataInputStream  in;
+    private final DataOutputStream out;
+    private final boolean compactHeartbeats;
+
+    // Emisor del último frame completo en cada dirección (heartbeats compactos)
+    private String lastSenderWritten;
+    private String lastSenderRead;
+
+    // Tablas de internado (una por dirección)
+    private final Map<String, Integer> writeTable = new HashMap<>();
+    private final List<String>         readTable  = new ArrayList<>();
+
+    // Buffer reutilizable para armar cada frame antes de escribir la longitud
+    private final ByteArrayOutputStream frameBuffer = new ByteArrayOutputStream(256);
+    private final DataOutputStream      frameOut    = new DataOutputStream(frameBuffer);
+    // Buffer reutilizable para los lotes del transporte NIO
+    private final ByteArrayOutputStream batchBuffer = new ByteArrayOutputStream(1024);
+    private final DataOutputStream      batchOut    = new DataOutputStream(batchBuffer);
+
+    public BinaryMessageCodec(InputStream in, OutputStream out) {
+        this(in, out, false);
+    }
+
+    public BinaryMessageCodec(InputStream in, OutputStream out, boolean compactHeartbeats) {
+        this.in  = in  != null ? new DataInputStream(new BufferedInputStream(in)) : null;
+        this.out = out != null ? new DataOutputStream(new BufferedOutputStream(out)) : null;
+        this.compactHeartbeats = compactHeartbeats;
+    }
+
+    @Override
+    public String getName() {
+        return compactHeartbeats ? BINARY_V2 : BINARY;
+    }
+
+    @Override
+    public void write(Message message) throws IOException {
+        encodeBody(message);
+        out.writeInt(frameBuffer.size());
+        frameBuffer.writeTo(out);
+    }
+
+    /**
+     * Codifica un lote de frames [longitud][cuerpo] contiguos en un solo buffer
+     * para escribirlo en el SocketChannel con una sola llamada. Un mensaje que
+     * no se puede codificar se omite sin afectar al resto del lote.
+     */
+    ByteBuffer encodeFrames(List<Message> messages) {
+        batchBuffer.reset();
+        for (Message message : messages) {
+            try {
+                encodeBody(message);
+                batchOut.writeInt(frameBuffer.size());
+                frameBuffer.writeTo(batchBuffer);
+            } catch (IOException e) {
+                System.err.println("⚠ Mensaje " + message.getType() + " no codificable: " + e.getMessage());
+            }
+        }
+        return ByteBuffer.wrap(batchBuffer.toByteArray());
+    }
+
+    private void encodeBody(Message message) throws IOException {
+        frameBuffer.reset();
+        if (encodeHeartbeat(message, frameOut))
+            return;
+        int interned = writeTable.size();
+        try {
+            encode(message, frameOut);
+        } catch (IOException e) {
+            // El frame no se envía: deshacer el internado para no desincronizar al lector
+            writeTable.values().removeIf(index -> index >= interned);
+            throw e;
+        }
+        lastSenderWritten = message.getSenderId();
+    }
+
+    @Override
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    @Override
+    public Message read() throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > MAX_FRAME_SIZE)
+            throw new IOException("Tamaño de frame inválido: " + length);
+        byte[] body = new byte[length];
+        in.readFully(body);
+        return decode(body, 0, length);
+    }
+
+    /** Decodifica el cuerpo de un frame ya recibido (sin el prefijo de longitud). */
+    Message decode(byte[] body, int offset, int length) throws IOException {
+        return decode(new DataInputStream(new ByteArrayInputStream(body, offset, length)));
+    }
+
+    @Override
+    public void close() {
+        try {
+            if (in != null) in.close();
+        } catch (IOException ignored) {
+        }
+        try {
+            if (out != null) out.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    // ── Cuerpo del mensaje ───────────────────────────────────────────────
+
+    void encode(Message message, DataOutputStream dos) throws IOException {
+        dos.writeByte(message.getType().ordinal());
+        writeId(message.getId(), dos);
+        writeInterned(message.getSenderId(), dos);
+        dos.writeLong(message.getTimestamp());
+
+        Map<String, Object> payload = message.getPayload();
+        writeVarInt(payload.size(), dos);
+        for (Map.Entry<String, Object> e : payload.entrySet()) {
+            writeInterned(e.getKey(), dos);
+            writeValue(e.getValue(), dos);
+        }
+    }
+
+    Message decode(DataInputStream dis) throws IOException {
+        int ordinal = dis.readUnsignedByte();
+        if (compactHeartbeats && (ordinal == HB_PING || ordinal == HB_ECHO))
+            return decodeHeartbeat(ordinal, dis);
+        if (ordinal >= TYPES.length)
+            throw new IOException("MessageType desconocido: " + ordinal);
+        MessageType type = TYPES[ordinal];
+        String id        = readId(dis);
+        String senderId  = readInterned(dis);
+        long   timestamp = dis.readLong();
+
+        int entries = readVarInt(dis);
+        Map<String, Object> payload = new HashMap<>(Math.max(4, entries * 2));
+        for (int i = 0; i < entries; i++) {
+            String key = readInterned(dis);
+            payload.put(key, readValue(dis));
+        }
+        lastSenderRead = senderId;
+        return new Message(id, type, senderId, timestamp, payload);
+    }
+
+    // ── Heartbeat compacto ───────────────────────────────────────────────
+
+    /** Escribe el heartbeat en formato fijo si su forma lo permite; si no, false. */
+    private boolean encodeHeartbeat(Message message, DataOutputStream dos) throws IOException {
+        if (!compactHeartbeats || message.getType() != MessageType.HEARTBEAT
+                || lastSenderWritten == null || !lastSenderWritten.equals(message.getSenderId()))
+            return false;
+        Map<String, Object> payload = message.getPayload();
+        Object ping = payload.get("ping");
+        Object echo = payload.get("echo");
+        Object load = payload.get("load");
+        if (payload.size() != 2 || !(load instanceof Integer) || !((ping instanceof Long) ^ (echo instanceof Long)))
+            return false;
+        dos.writeByte(ping != null ? HB_PING : HB_ECHO);
+        dos.writeLong(ping != null ? (Long) ping : (Long) echo);
+        dos.writeShort(Math.min((Integer) load, 0xFFFF));
+        return true;
+    }
+
+    private Message decodeHeartbeat(int marker, DataInputStream dis) throws IOException {
+        if (lastSenderRead == null)
+            throw new IOException("Heartbeat compacto antes de conocer al emisor");
+        Map<String, Object> payload = new HashMap<>(4);
+        payload.put(marker == HB_PING ? "ping" : "echo", dis.readLong());
+        payload.put("load", dis.readUnsignedShort());
+        return new Message(null, MessageType.HEARTBEAT, lastSenderRead, System.currentTimeMillis(), payload);
+    }
+
+    // ── Identificador ────────────────────────────────────────────────────
+
+    private static void writeId(String id, DataOutputStream dos) throws IOException {
+        if (id != null && id.length() == 36) {
+            try {
+                UUID uuid = UUID.fromString(id);
+                dos.writeByte(1);
+                dos.writeLong(uuid.getMostSignificantBits());
+                dos.writeLong(uuid.getLeastSignificantBits());
+                return;
+            } catch (IllegalArgumentException ignored) {
+                // no es un UUID: se envía como texto
+            }
+        }
+        dos.writeByte(0);
+        writeString(id, dos);
+    }
+
+    private static String readId(DataInputStream dis) throws IOException {
+        if (dis.readByte() == 1)
+            return new UUID(dis.readLong(), dis.readLong()).toString();
+        return readString(dis);
+    }
+
+    // ── Internado de cadenas ─────────────────────────────────────────────
+
+    /** 0 = literal (se interna si queda espacio), n > 0 = entrada n-1 de la tabla. */
+    private void writeInterned(String s, DataOutputStream dos) throws IOException {
+        Integer index = writeTable.get(s);
+        if (index != null) {
+            writeVarInt(index + 1, dos);
+            return;
+        }
+        writeVarInt(0, dos);
+        writeString(s, dos);
+        if (s != null && writeTable.size() < MAX_INTERNED)
+            writeTable.put(s, writeTable.size());
+    }
+
+    private String readInterned(DataInputStream dis) throws IOException {
+        int ref = readVarInt(dis);
+        if (ref == 0) {
+            String s = readString(dis);
+            if (s != null && readTable.size() < MAX_INTERNED) readTable.add(s);
+            return s;
+        }
+        if (ref > readTable.size())
+            throw new IOException("Referencia de cadena internada inválida: " + ref);
+        return readTable.get(ref - 1);
+    }
+
+    // ── Valores tipados ──────────────────────────────────────────────────
+
+    private void writeValue(Object value, DataOutputStream dos) throws IOException {
+        if (value == null) {
+            dos.writeByte(TAG_NULL);
+        } else if (value instanceof String s) {
+            dos.writeByte(TAG_STRING);
+            writeString(s, dos);
+        } else if (value instanceof Boolean b) {
+            dos.writeByte(b ? TAG_TRUE : TAG_FALSE);
+        } else if (value instanceof Integer i) {
+            dos.writeByte(TAG_INT);
+            dos.writeInt(i);
+        } else if (value instanceof Long l) {
+            dos.writeByte(TAG_LONG);
+            dos.writeLong(l);
+        } else if (value instanceof Double d) {
+            dos.writeByte(TAG_DOUBLE);
+            dos.writeDouble(d);
+        } else if (value instanceof byte[] bytes) {
+            dos.writeByte(TAG_BYTES);
+            writeVarInt(bytes.length, dos);
+            dos.write(bytes);
+        } else if (value instanceof List<?> list) {
+            dos.writeByte(TAG_LIST);
+            writeVarInt(list.size(), dos);
+            for (Object item : list) writeValue(item, dos);
+        } else if (value instanceof Map<?, ?> map) {
+            dos.writeByte(TAG_MAP);
+            writeVarInt(map.size(), dos);
+            for (Map.Entry<?, ?> e : map.entrySet()) {
+                writeValue(e.getKey(), dos);
+                writeValue(e.getValue(), dos);
+            }
+        } else if (value instanceof Serializable) {
+            dos.writeByte(TAG_SERIALIZED);
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            try (ObjectOutputStream oos = new ObjectOutputStream(bos)) {
+                oos.writeObject(value);
+            }
+            writeVarInt(bos.size(), dos);
+            bos.writeTo(dos);
+        } else {
+            throw new NotSerializableException(value.getClass().getName());
+        }
+    }
+
+    private Object readValue(DataInputStream dis) throws IOException {
+        byte tag = dis.readByte();
+        switch (tag) {
+            case TAG_NULL:
+                return null;
+            case TAG_STRING:
+                return readString(dis);
+            case TAG_TRUE:
+                return Boolean.TRUE;
+            case TAG_FALSE:
+                return Boolean.FALSE;
+            case TAG_INT:
+                return dis.readInt();
+            case TAG_LONG:
+                return dis.readLong();
+            case TAG_DOUBLE:
+                return dis.readDouble();
+            case TAG_BYTES: {
+                byte[] bytes = new byte[readLength(dis)];
+                dis.readFully(bytes);
+                return bytes;
+            }
+            case TAG_LIST: {
+                int size = readLength(dis);
+                ArrayList<Object> list = new ArrayList<>(size);
+                for (int i = 0; i < size; i++) list.add(readValue(dis));
+                return list;
+            }
+            case TAG_MAP: {
+                int size = readLength(dis);
+                HashMap<Object, Object> map = new HashMap<>(Math.max(4, size * 2));
+                for (int i = 0; i < size; i++) map.put(readValue(dis), readValue(dis));
+                return map;
+            }
+            case TAG_SERIALIZED: {
+                byte[] bytes = new byte[readLength(dis)];
+                dis.readFully(bytes);
+                try (ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+                    return ois.readObject();
+                } catch (ClassNotFoundException e) {
+                    throw new IOException("Clase desconocida en payload: " + e.getMessage(), e);
+                }
+            }
+            default:
+                throw new IOException("Etiqueta de valor desconocida: " + tag);
+        }
+    }
+
+    // ── Primitivas ───────────────────────────────────────────────────────
+
+    /** Cadena UTF-8 precedida de (longitud + 1) en varint; 0 = null. */
+    private static void writeString(String s, DataOutputStream dos) throws IOException {
+        if (s == null) {
+            writeVarInt(0, dos);
+            return;
+        }
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        writeVarInt(bytes.length + 1, dos);
+        dos.write(bytes);
+    }
+
+    private static String readString(DataInputStream dis) throws IOException {
+        int length = readLength(dis);
+        if (length == 0) return null;
+        byte[] bytes = new byte[length - 1];
+        dis.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static int readLength(DataInputStream dis) throws IOException {
+        int length = readVarInt(dis);
+        if (length < 0 || length > MAX_FRAME_SIZE)
+            throw new IOException("Longitud inválida: " + length);
+        return length;
+    }
+
+    static void writeVarInt(int value, DataOutputStream dos) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            dos.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        dos.writeByte(value);
+    }
+
+    static int readVarInt(DataInputStream dis) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            int b = dis.readUnsignedByte();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return value;
+        }
+        throw new IOException("Varint demasiado largo");
+    }
+}
@@ -0,0 +1,242 @@
+package com.p2p.network;
+
+import com.p2p.utils.HashedWheelTimer;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Difusión epidémica en árbol (Plumtree, Leitão et al.) sobre las
+ * conexiones de TCPNetworkModule.
+ *
+ * Cada vecino es "eager" (se le reenvía el mensaje completo) o "lazy" (solo
+ * recibe BCAST_IHAVE con el id). Al principio todos son eager; quien nos
+ * entrega un duplicado pasa a lazy y recibe BCAST_PRUNE, así que los enlaces
+ * eager convergen a un árbol de expansión: cada mensaje cruza cada arista
+ * del árbol una vez. Si un IHAVE no va seguido del mensaje en GRAFT_TIMEOUT_MS
+ * (se rompió el árbol), se pide con BCAST_GRAFT y ese enlace vuelve a eager.
+ *
+ * Los mensajes difundidos llevan el payload BCAST_KEY y se deduplican por su
+ * id. Las respuestas (REPLY_KEY = id del original) vuelven por el camino
+ * inverso hasta el origen, que puede no ser vecino nuestro.
+ *
+ * Los peers con codec anterior a binary2 no entienden los tipos BCAST_*:
+ * con ellos el enlace es siempre eager y sin mensajes de control.
+ */
+class BroadcastOverlay {
+
+    static final String BCAST_KEY = "bcast";
+    static final String REPLY_KEY = "bcastReplyTo";
+
+    private static final long GRAFT_TIMEOUT_MS = Long.getLong("p2p.bcast.graftMs", 1000L);
+    private static final int  MAX_RECENT = 4096;
+
+    /** Mensaje ya visto: se guarda para atender GRAFT y enrutar respuestas. */
+    private static class Seen {
+        final Message message;
+        final String from; // null si lo originamos nosotros
+
+        Seen(Message message, String from) {
+            this.message = message;
+            this.from    = from;
+        }
+    }
+
+    /** Ids anunciados por IHAVE que aún no han llegado. */
+    private static class Missing {
+        final Deque<String> announcers = new ArrayDeque<>();
+        HashedWheelTimer.Timeout timeout;
+    }
+
+    private final TCPNetworkModule network;
+    private final HashedWheelTimer timer;
+
+    private final Map<String, Seen> recent = new LinkedHashMap<>(256, 0.75f, false) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Seen> eldest) {
+            return size() > MAX_RECENT;
+        }
+    };
+    private final Map<String, Missing> missing = new HashMap<>();
+    private final Set<String> lazyPeers = ConcurrentHashMap.newKeySet();
+
+    // Métricas
+    private final LongAdder originated = new LongAdder();
+    private final LongAdder delivered = new LongAdder();
+    private final LongAdder duplicates = new LongAdder();
+    private final LongAdder prunes = new LongAdder();
+    private final LongAdder grafts = new LongAdder();
+    private final LongAdder repliesRouted = new LongAdder();
+
+    BroadcastOverlay(TCPNetworkModule network, HashedWheelTimer timer) {
+        this.network = network;
+        this.timer   = timer;
+    }
+
+    /** Difunde un mensaje originado aquí. */
+    void broadcast(Message message) {
+        message.addPayload(BCAST_KEY, true);
+        synchronized (this) {
+            recent.put(message.getId(), new Seen(message, null));
+        }
+        originated.increment();
+        relay(message, null);
+    }
+
+    /**
+     * Mensaje difundido recibido de from. Devuelve true si es nuevo y debe
+     * entregarse a los listeners; los duplicados podan el enlace.
+     */
+    boolean receive(Message message, TCPNetworkModule.PeerConnection from) {
+        String id = message.getId();
+        HashedWheelTimer.Timeout pending = null;
+        synchronized (this) {
+            if (recent.containsKey(id)) {
+                duplicates.increment();
+                if (supportsControl(from) && lazyPeers.add(from.getPeerId())) {
+                    prunes.increment();
+                    from.send(new Message(MessageType.BCAST_PRUNE, network.getNodeId()));
+                }
+                return false;
+            }
+            recent.put(id, new Seen(message, from.getPeerId()));
+            Missing m = missing.remove(id);
+            if (m != null) pending = m.timeout;
+        }
+        if (pending != null) pending.cancel();
+        lazyPeers.remove(from.getPeerId()); // nos lo dio primero: rama del árbol
+        delivered.increment();
+        relay(message, from.getPeerId());
+        return true;
+    }
+
+    /**
+     * Respuesta a un mensaje difundido. Si el original llegó por otro peer se
+     * reenvía hacia él y devuelve true (no se entrega aquí); si lo
+     * originamos nosotros o no se conoce, devuelve false.
+     */
+    boolean routeReply(Message reply) {
+        Object original = reply.getPayload(REPLY_KEY);
+        Seen seen;
+        synchronized (this) {
+            seen = recent.get(original);
+        }
+        if (seen == null || seen.from == null)
+            return false;
+        repliesRouted.increment();
+        network.sendMessage(reply, seen.from);
+        return true;
+    }
+
+    /** Envía reply hacia el origen de original (directo si es vecino). */
+    void reply(Message original, Message reply, TCPNetworkModule.PeerConnection source) {
+        reply.addPayload(REPLY_KEY, original.getId());
+        String origin = original.getSenderId();
+        if (network.isConnectedTo(origin))
+            network.sendMessage(reply, origin);
+        else
+            source.send(reply);
+    }
+
+    /** BCAST_IHAVE / BCAST_PRUNE / BCAST_GRAFT. */
+    void onControl(Message message, TCPNetworkModule.PeerConnection from) {
+        String peerId = from.getPeerId();
+        switch (message.getType()) {
+            case BCAST_PRUNE:
+                lazyPeers.add(peerId);
+                break;
+            case BCAST_GRAFT: {
+                lazyPeers.remove(peerId);
+                Seen seen;
+                synchronized (this) {
+                    seen = recent.get(message.getPayload("id"));
+                }
+                if (seen != null) from.send(seen.message);
+                break;
+            }
+            case BCAST_IHAVE:
+                handleIHave(message, peerId);
+                break;
+            default:
+                break;
+        }
+    }
+
+    Map<String, Object> getStats() {
+        Map<String, Object> stats = new HashMap<>();
+        lazyPeers.removeIf(peerId -> !network.isConnectedTo(peerId));
+        stats.put("eagerPeers", network.getPeerCount() - lazyPeers.size());
+        stats.put("lazyPeers", lazyPeers.size());
+        stats.put("originated", originated.sum());
+        stats.put("delivered", delivered.sum());
+        stats.put("duplicates", duplicates.sum());
+        stats.put("prunes", prunes.sum());
+        stats.put("grafts", grafts.sum());
+        stats.put("repliesRouted", repliesRouted.sum());
+        return stats;
+    }
+
+    // ── Internos ─────────────────────────────────────────────────────────
+
+    /** Mensaje completo a los eager, IHAVE a los lazy (sin devolverlo a from). */
+    private void relay(Message message, String from) {
+        Message ihave = null;
+        for (TCPNetworkModule.PeerConnection conn : network.getPeers().values()) {
+            String peerId = conn.getPeerId();
+            if (peerId.equals(from) || peerId.equals(message.getSenderId()) || !conn.isConnected())
+                continue;
+            if (!supportsControl(conn) || !lazyPeers.contains(peerId)) {
+                conn.send(message);
+            } else {
+                if (ihave == null) {
+                    ihave = new Message(MessageType.BCAST_IHAVE, network.getNodeId());
+                    ihave.addPayload("id", message.getId());
+                }
+                conn.send(ihave);
+            }
+        }
+    }
+
+    private void handleIHave(Message message, String peerId) {
+        Object id = message.getPayload("id");
+        if (!(id instanceof String)) return;
+        synchronized (this) {
+            if (recent.containsKey(id)) return;
+            Missing m = missing.get(id);
+            if (m != null) {
+                m.announcers.add(peerId);
+                return;
+            }
+            m = new Missing();
+            m.announcers.add(peerId);
+            missing.put((String) id, m);
+            m.timeout = timer.schedule(() -> graft((String) id), GRAFT_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /** El mensaje no llegó por el árbol: pedírselo al siguiente que lo anunció. */
+    private void graft(String id) {
+        String announcer;
+        synchronized (this) {
+            Missing m = missing.get(id);
+            if (m == null) return;
+            announcer = m.announcers.poll();
+            if (announcer == null) {
+                missing.remove(id);
+                return;
+            }
+            m.timeout = timer.schedule(() -> graft(id), GRAFT_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        }
+        lazyPeers.remove(announcer);
+        grafts.increment();
+        Message graft = new Message(MessageType.BCAST_GRAFT, network.getNodeId());
+        graft.addPayload("id", id);
+        network.sendMessage(graft, announcer);
+    }
+
+    private static boolean supportsControl(TCPNetworkModule.PeerConnection conn) {
+        return MessageCodec.BINARY_V2.equals(conn.getCodec().getName());
+    }
+}
@@ -0,0 +1,288 @@
+package com.p2p.network;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.*;
+
+/**
+ * Sincronización por deltas al estilo rsync (PUT de vuelta desde FileEditor).
+ *
+ *   Dueño  → firma de su versión: por bloque de blockSize bytes, checksum
+ *            rodante (débil) + SHA-256 truncado a STRONG_LEN bytes (fuerte).
+ *   Editor → recorre su versión con la ventana rodante; donde coincide un
+ *            bloque envía una referencia (COPY), el resto como bytes (LITERAL).
+ *   Dueño  → reconstruye copiando sus propios bloques y los literales, y
+ *            verifica el SHA-256 completo antes de aceptar el resultado.
+ *
+ * Formato de las operaciones (tras writeLong(tamaño nuevo)):
+ *   OP_COPY    int primerBloque, int cantidad
+ *   OP_LITERAL int longitud, bytes
+ *   OP_END     byte[32] SHA-256 del archivo completo
+ */
+class DeltaSync {
+
+    static final byte OP_END     = 0;
+    static final byte OP_COPY    = 1;
+    static final byte OP_LITERAL = 2;
+
+    static final int STRONG_LEN     = 16;
+    static final int MIN_BLOCK      = 1024;
+    static final int MAX_BLOCK      = 64 * 1024;
+    /** Mayor archivo que el editor procesa en memoria; por encima, PUT completo. */
+    static final long MAX_DELTA_FILE = 64L * 1024 * 1024;
+    private static final int MAX_LITERAL = 64 * 1024;
+
+    /** Firma de la versión del dueño. */
+    static class Signature {
+        final long size;
+        final long lastModified;
+        final int blockSize;
+        final int[] weak;
+        final byte[][] strong;
+
+        Signature(long size, long lastModified, int blockSize, int[] weak, byte[][] strong) {
+            this.size         = size;
+            this.lastModified = lastModified;
+            this.blockSize    = blockSize;
+            this.weak         = weak;
+            this.strong       = strong;
+        }
+
+        int blockLength(int i) {
+            return (int) Math.min(blockSize, size - (long) i * blockSize);
+        }
+    }
+
+    /** Bloque proporcional a √tamaño, como rsync, acotado a [MIN_BLOCK, MAX_BLOCK]. */
+    static int blockSizeFor(long size) {
+        int bs = (int) Math.sqrt((double) size);
+        return Math.max(MIN_BLOCK, Math.min(MAX_BLOCK, bs));
+    }
+
+    // ── Checksums ────────────────────────────────────────────────────────
+
+    /** Checksum débil de rsync: a = Σx, b = Σ(len-i)·x, ambos mod 2^16. */
+    static int weak(byte[] data, int off, int len) {
+        int a = 0, b = 0;
+        for (int i = 0; i < len; i++) {
+            int x = data[off + i] & 0xFF;
+            a += x;
+            b += (len - i) * x;
+        }
+        return (a & 0xFFFF) | (b << 16);
+    }
+
+    /** Desplaza la ventana un byte: sale out, entra in. */
+    static int roll(int weak, byte out, byte in, int len) {
+        int a = weak & 0xFFFF;
+        int b = weak >>> 16;
+        int o = out & 0xFF;
+        a = (a - o + (in & 0xFF)) & 0xFFFF;
+        b = (b - len * o + a) & 0xFFFF;
+        return a | (b << 16);
+    }
+
+    static byte[] strong(byte[] data, int off, int len) {
+        MessageDigest md = FileTransferTCP.sha256();
+        md.update(data, off, len);
+        return Arrays.copyOf(md.digest(), STRONG_LEN);
+    }
+
+    // ── Dueño: firma ─────────────────────────────────────────────────────
+
+    static void writeSignature(File file, int blockSize, DataOutputStream dos) throws IOException {
+        long size   = file.length();
+        int  blocks = (int) ((size + blockSize - 1) / blockSize);
+        dos.writeLong(size);
+        dos.writeLong(file.lastModified());
+        dos.writeInt(blocks);
+
+        byte[] buf = new byte[blockSize];
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(file), FileTransferTCP.BUFFER_SIZE))) {
+            for (int i = 0; i < blocks; i++) {
+                int len = (int) Math.min(blockSize, size - (long) i * blockSize);
+                in.readFully(buf, 0, len);
+                dos.writeInt(weak(buf, 0, len));
+                dos.write(strong(buf, 0, len));
+            }
+        }
+        dos.flush();
+    }
+
+    static Signature readSignature(DataInputStream dis, int blockSize) throws IOException {
+        long size         = dis.readLong();
+        long lastModified = dis.readLong();
+        int  blocks       = dis.readInt();
+        if (size < 0) throw new FileNotFoundException("El dueño no tiene el archivo");
+        if (blocks != (int) ((size + blockSize - 1) / blockSize))
+            throw new IOException("Firma inconsistente");
+
+        int[] weak = new int[blocks];
+        byte[][] strong = new byte[blocks][STRONG_LEN];
+        for (int i = 0; i < blocks; i++) {
+            weak[i] = dis.readInt();
+            dis.readFully(strong[i]);
+        }
+        return new Signature(size, lastModified, blockSize, weak, strong);
+    }
+
+    // ── Editor: delta ────────────────────────────────────────────────────
+
+    /**
+     * Escribe las operaciones que transforman la versión del dueño en data.
+     * @return bytes enviados como literales
+     */
+    static long writeDelta(byte[] data, Signature sig, DataOutputStream dos) throws IOException {
+        int bs = sig.blockSize;
+        int n  = data.length;
+
+        // Solo los bloques completos se buscan con la ventana rodante
+        Map<Integer, List<Integer>> byWeak = new HashMap<>();
+        int blocks = sig.weak.length;
+        for (int i = 0; i < blocks; i++) {
+            if (sig.blockLength(i) == bs)
+                byWeak.computeIfAbsent(sig.weak[i], k -> new ArrayList<>(1)).add(i);
+        }
+
+        DeltaWriter out = new DeltaWriter(dos);
+        int literalStart = 0;
+        int i = 0;
+        int w = n >= bs ? weak(data, 0, bs) : 0;
+        while (i + bs <= n) {
+            int match = -1;
+            List<Integer> candidates = byWeak.get(w);
+            if (candidates != null) {
+                byte[] s = strong(data, i, bs);
+                for (int c : candidates) {
+                    if (Arrays.equals(s, sig.strong[c])) { match = c; break; }
+                }
+            }
+            if (match >= 0) {
+                out.literal(data, literalStart, i - literalStart);
+                out.copy(match);
+                i += bs;
+                literalStart = i;
+                if (i + bs <= n) w = weak(data, i, bs);
+            } else {
+                if (i + bs < n) w = roll(w, data[i], data[i + bs], bs);
+                i++;
+            }
+        }
+
+        // Último bloque del dueño (más corto) al final de la versión nueva
+        int last = blocks - 1;
+        if (last >= 0 && sig.blockLength(last) < bs) {
+            int len = sig.blockLength(last);
+            if (n - literalStart >= len && Arrays.equals(strong(data, n - len, len), sig.strong[last])) {
+                out.literal(data, literalStart, n - len - literalStart);
+                out.copy(last);
+                literalStart = n;
+            }
+        }
+        out.literal(data, literalStart, n - literalStart);
+        out.flushCopies();
+
+        MessageDigest md = FileTransferTCP.sha256();
+        md.update(data);
+        dos.writeByte(OP_END);
+        dos.write(md.digest());
+        dos.flush();
+        return out.literalBytes;
+    }
+
+    /** Agrupa bloques consecutivos en un solo OP_COPY. */
+    private static class DeltaWriter {
+        private final DataOutputStream dos;
+        private int runStart = -1, runLength;
+        long literalBytes;
+
+        DeltaWriter(DataOutputStream dos) {
+            this.dos = dos;
+        }
+
+        void copy(int block) throws IOException {
+            if (runStart >= 0 && runStart + runLength == block) {
+                runLength++;
+                return;
+            }
+            flushCopies();
+            runStart = block;
+            runLength = 1;
+        }
+
+        void literal(byte[] data, int off, int len) throws IOException {
+            if (len <= 0) return;
+            flushCopies();
+            for (int p = 0; p < len; p += MAX_LITERAL) {
+                int chunk = Math.min(MAX_LITERAL, len - p);
+                dos.writeByte(OP_LITERAL);
+                dos.writeInt(chunk);
+                dos.write(data, off + p, chunk);
+            }
+            literalBytes += len;
+        }
+
+        void flushCopies() throws IOException {
+            if (runStart < 0) return;
+            dos.writeByte(OP_COPY);
+            dos.writeInt(runStart);
+            dos.writeInt(runLength);
+            runStart = -1;
+        }
+    }
+
+    // ── Dueño: reconstrucción ────────────────────────────────────────────
+
+    /**
+     * Aplica las operaciones sobre basis y escribe el resultado en target.
+     * @return false si el SHA-256 final no coincide
+     */
+    static boolean applyDelta(File basis, int blockSize, long newSize, DataInputStream dis, File target)
+            throws IOException {
+        MessageDigest md = FileTransferTCP.sha256();
+        long written = 0;
+        byte[] buf = new byte[Math.max(blockSize, MAX_LITERAL)];
+
+        try (FileChannel base = FileChannel.open(basis.toPath(), StandardOpenOption.READ);
+             OutputStream out = new BufferedOutputStream(new FileOutputStream(target), FileTransferTCP.BUFFER_SIZE)) {
+            long baseSize   = base.size();
+            long baseBlocks = (baseSize + blockSize - 1) / blockSize;
+            for (;;) {
+                byte op = dis.readByte();
+                if (op == OP_END) break;
+                if (op == OP_COPY) {
+                    int first = dis.readInt(), count = dis.readInt();
+                    if (first < 0 || count < 0 || first + (long) count > baseBlocks)
+                        throw new IOException("Referencia a bloque inválida: " + first + "+" + count);
+                    for (int b = first; b < first + count; b++) {
+                        long pos = (long) b * blockSize;
+                        int  len = (int) Math.min(blockSize, baseSize - pos);
+                        ByteBuffer bb = ByteBuffer.wrap(buf, 0, len);
+                        while (bb.hasRemaining())
+                            if (base.read(bb, pos + bb.position()) < 0) throw new EOFException("Base truncada");
+                        out.write(buf, 0, len);
+                        md.update(buf, 0, len);
+                        written += len;
+                    }
+                } else if (op == OP_LITERAL) {
+                    int len = dis.readInt();
+                    if (len < 0 || len > MAX_LITERAL) throw new IOException("Literal inválido: " + len);
+                    dis.readFully(buf, 0, len);
+                    out.write(buf, 0, len);
+                    md.update(buf, 0, len);
+                    written += len;
+                } else {
+                    throw new IOException("Operación delta desconocida: " + op);
+                }
+                if (written > newSize) throw new IOException("Delta excede el tamaño anunciado");
+            }
+        }
+        byte[] expected = new byte[32];
+        dis.readFully(expected);
+        return written == newSize && MessageDigest.isEqual(expected, md.digest());
+    }
+}
@@ -0,0 +1,418 @@
+package com.p2p.network;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Descargas multiplexadas sobre la conexión de mensajes ya abierta con el
+ * peer, sin un socket nuevo al puerto 8889 por archivo.
+ *
+ * Cada descarga es un stream con id propio (del lado que la pide):
+ *   FILE_TRANSFER {op: "open",   streamId, filename, offset, length, window}
+ *   FILE_TRANSFER {op: "credit", streamId, bytes}   → amplía la ventana
+ *   FILE_TRANSFER {op: "cancel", streamId}
+ *   FILE_DATA     {streamId, offset, data}
+ *   FILE_COMPLETE {streamId, size, lastModified, count}  o  {streamId, error, code}
+ *
+ * code = "notFound" si el dueño no tiene el archivo (no tiene sentido
+ * reintentar por el puerto de archivos); cualquier otro error es de E/S.
+ *
+ * Control de flujo por stream: el emisor solo envía mientras le quede
+ * ventana (WINDOW_BYTES al abrir) y el receptor la devuelve al escribir cada
+ * bloque, así un stream lento no llena la cola de salida compartida y los
+ * FILE_DATA de varias descargas se intercalan en la misma conexión.
+ *
+ * Solo se usa con peers que negociaron el codec binary2 (los anteriores no
+ * atienden FILE_TRANSFER); si no, o si el stream falla, FileTransferTCP
+ * descarga por el puerto de archivos como siempre.
+ */
+public class FileStreamMux implements TCPNetworkModule.MessageListener {
+
+    public static final boolean ENABLED = !"false".equalsIgnoreCase(System.getProperty("p2p.mux"));
+    private static final int CHUNK_SIZE = Integer.getInteger("p2p.mux.chunk", 32 * 1024);
+    private static final int WINDOW_BYTES = Integer.getInteger("p2p.mux.window", 8 * CHUNK_SIZE);
+    private static final String NOT_FOUND = "notFound";
+
+    /** Resultado de un stream: tamaño y lastModified del archivo en el dueño, bytes recibidos. */
+    static class StreamResult {
+        final long size, lastModified, count;
+
+        StreamResult(long size, long lastModified, long count) {
+            this.size         = size;
+            this.lastModified = lastModified;
+            this.count        = count;
+        }
+    }
+
+    /**
+     * Stream entrante (descarga nuestra). Las escrituras a disco se encadenan
+     * en writes y corren en el pool, no en el hilo lector de la conexión: un
+     * disco lento no frena el resto de mensajes del peer, y como el crédito
+     * se devuelve al escribir, frena solo a este stream.
+     */
+    private static class Inbound {
+        final String peerId;
+        final FileChannel channel;
+        final CompletableFuture<StreamResult> result = new CompletableFuture<>();
+        final AtomicLong received = new AtomicLong();
+        CompletableFuture<Void> writes = CompletableFuture.completedFuture(null);
+
+        Inbound(String peerId, FileChannel channel) {
+            this.peerId  = peerId;
+            this.channel = channel;
+        }
+    }
+
+    /** Stream saliente (lo que servimos a un peer). */
+    private static class Outbound {
+        final String peerId;
+        final int streamId;
+        final FileChannel channel;
+        final long end, size, lastModified, start;
+        final AtomicLong credit;
+        final AtomicBoolean pumping = new AtomicBoolean();
+        volatile boolean closed;
+        long position;
+
+        Outbound(String peerId, int streamId, FileChannel channel, long start, long end,
+                 long size, long lastModified, long window) {
+            this.peerId       = peerId;
+            this.streamId     = streamId;
+            this.channel      = channel;
+            this.start        = start;
+            this.position     = start;
+            this.end          = end;
+            this.size         = size;
+            this.lastModified = lastModified;
+            this.credit       = new AtomicLong(window);
+        }
+    }
+
+    private final TCPNetworkModule networkModule;
+    private final String sharedDir;
+    private final AtomicInteger nextStreamId = new AtomicInteger();
+    private final ConcurrentHashMap<Integer, Inbound> inbound = new ConcurrentHashMap<>();
+    // "peerId#streamId" → stream que servimos
+    private final ConcurrentHashMap<String, Outbound> outbound = new ConcurrentHashMap<>();
+
+    // Métricas
+    private final LongAdder streamsOpened = new LongAdder();
+    private final LongAdder streamsServed = new LongAdder();
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+
+    public FileStreamMux(TCPNetworkModule networkModule, String sharedDir) {
+        this.networkModule = networkModule;
+        this.sharedDir     = sharedDir;
+    }
+
+    /** true si se puede descargar de peerId por su conexión de mensajes. */
+    boolean canStream(String peerId) {
+        TCPNetworkModule.PeerConnection conn = networkModule.getPeers().get(peerId);
+        return conn != null && conn.isConnected()
+                && MessageCodec.BINARY_V2.equals(conn.getCodec().getName());
+    }
+
+    /**
+     * Descarga [offset, offset+length) de filename a dest (misma posición).
+     * Bloquea hasta terminar; falla si pasan TIMEOUT_MS sin recibir datos.
+     */
+    StreamResult download(String peerId, String filename, long offset, long length, File dest)
+            throws IOException {
+        int streamId = nextStreamId.incrementAndGet();
+        FileChannel channel = FileChannel.open(dest.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        Inbound stream = new Inbound(peerId, channel);
+        inbound.put(streamId, stream);
+        streamsOpened.increment();
+        try {
+            Message open = new Message(MessageType.FILE_TRANSFER, networkModule.getNodeId());
+            open.addPayload("op", "open");
+            open.addPayload("streamId", streamId);
+            open.addPayload("filename", filename);
+            open.addPayload("offset", offset);
+            open.addPayload("length", length);
+            open.addPayload("window", WINDOW_BYTES);
+            networkModule.sendMessage(open, peerId);
+
+            long seen = -1;
+            while (true) {
+                try {
+                    return stream.result.get(FileTransferTCP.TIMEOUT_MS, TimeUnit.MILLISECONDS);
+                } catch (TimeoutException e) {
+                    long now = stream.received.get();
+                    if (now == seen) {
+                        cancel(peerId, streamId);
+                        throw new IOException("Stream " + streamId + " sin datos de " + peerId);
+                    }
+                    seen = now;
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof IOException) throw (IOException) cause;
+                    throw new IOException(cause);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    cancel(peerId, streamId);
+                    throw new InterruptedIOException("Descarga interrumpida");
+                }
+            }
+        } finally {
+            inbound.remove(streamId);
+            channel.close();
+        }
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new HashMap<>();
+        stats.put("activeDownloads", inbound.size());
+        stats.put("activeUploads", outbound.size());
+        stats.put("streamsOpened", streamsOpened.sum());
+        stats.put("streamsServed", streamsServed.sum());
+        stats.put("bytesIn", bytesIn.sum());
+        stats.put("bytesOut", bytesOut.sum());
+        stats.put("chunkSize", CHUNK_SIZE);
+        stats.put("windowBytes", WINDOW_BYTES);
+        return stats;
+    }
+
+    // ── MessageListener ──────────────────────────────────────────────────
+
+    @Override
+    public void onMessage(Message message, TCPNetworkModule.PeerConnection source) {
+        switch (message.getType()) {
+            case FILE_TRANSFER:
+                handleControl(message, source);
+                break;
+            case FILE_DATA:
+                handleData(message, source);
+                break;
+            case FILE_COMPLETE:
+                handleComplete(message, source);
+                break;
+            default:
+                break;
+        }
+    }
+
+    @Override
+    public void onPeerDisconnected(String peerId) {
+        inbound.values().forEach(stream -> {
+            if (stream.peerId.equals(peerId))
+                stream.result.completeExceptionally(new IOException("Conexión con " + peerId + " perdida"));
+        });
+        outbound.values().forEach(stream -> {
+            if (stream.peerId.equals(peerId)) close(stream);
+        });
+    }
+
+    // ── Lado receptor ────────────────────────────────────────────────────
+
+    /** Stream entrante streamId si lo abrimos con el peer que envía el mensaje. */
+    private Inbound inboundFrom(Message message, TCPNetworkModule.PeerConnection source) {
+        Inbound stream = inbound.get(intPayload(message, "streamId"));
+        return stream != null && stream.peerId.equals(source.getPeerId()) ? stream : null;
+    }
+
+    /** Encola task tras las escrituras pendientes del stream (orden de llegada). */
+    private void enqueue(Inbound stream, Runnable task) {
+        synchronized (stream) {
+            stream.writes = stream.writes.thenRunAsync(() -> {
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    // Un mensaje malformado no debe cortar la cadena: falla solo este stream
+                    stream.result.completeExceptionally(new IOException(e));
+                }
+            }, networkModule.getThreadManager()::executeTask);
+        }
+    }
+
+    private void handleData(Message message, TCPNetworkModule.PeerConnection source) {
+        Inbound stream = inboundFrom(message, source);
+        Object data = message.getPayload("data");
+        Object offset = message.getPayload("offset");
+        if (stream == null || !(data instanceof byte[]) || !(offset instanceof Number)) return;
+        enqueue(stream, () -> write(stream, message, (byte[]) data, ((Number) offset).longValue(), source));
+    }
+
+    private void write(Inbound stream, Message message, byte[] bytes, long position,
+                       TCPNetworkModule.PeerConnection source) {
+        if (stream.result.isDone()) return;
+        try {
+            ByteBuffer buf = ByteBuffer.wrap(bytes);
+            while (buf.hasRemaining())
+                position += stream.channel.write(buf, position);
+        } catch (IOException e) {
+            stream.result.completeExceptionally(e);
+            cancel(source.getPeerId(), intPayload(message, "streamId"));
+            return;
+        }
+        stream.received.addAndGet(bytes.length);
+        bytesIn.add(bytes.length);
+
+        // Bloque escrito: se devuelve su ventana al emisor
+        Message credit = new Message(MessageType.FILE_TRANSFER, networkModule.getNodeId());
+        credit.addPayload("op", "credit");
+        credit.addPayload("streamId", message.getPayload("streamId"));
+        credit.addPayload("bytes", bytes.length);
+        source.send(credit);
+    }
+
+    private void handleComplete(Message message, TCPNetworkModule.PeerConnection source) {
+        Inbound stream = inboundFrom(message, source);
+        if (stream == null) return;
+        // Tras las escrituras ya encoladas, para que received esté al día
+        enqueue(stream, () -> complete(stream, message));
+    }
+
+    private void complete(Inbound stream, Message message) {
+        Object error = message.getPayload("error");
+        if (error != null) {
+            String text = String.valueOf(error);
+            stream.result.completeExceptionally(NOT_FOUND.equals(message.getPayload("code"))
+                    ? new FileNotFoundException(text) : new IOException(text));
+            return;
+        }
+        long count = ((Number) message.getPayload("count")).longValue();
+        if (stream.received.get() != count) {
+            stream.result.completeExceptionally(new IOException("Stream incompleto: "
+                    + stream.received.get() + " de " + count + " bytes"));
+            return;
+        }
+        stream.result.complete(new StreamResult(((Number) message.getPayload("size")).longValue(),
+                ((Number) message.getPayload("lastModified")).longValue(), count));
+    }
+
+    private void cancel(String peerId, int streamId) {
+        Message cancel = new Message(MessageType.FILE_TRANSFER, networkModule.getNodeId());
+        cancel.addPayload("op", "cancel");
+        cancel.addPayload("streamId", streamId);
+        networkModule.sendMessage(cancel, peerId);
+    }
+
+    // ── Lado emisor ──────────────────────────────────────────────────────
+
+    private void handleControl(Message message, TCPNetworkModule.PeerConnection source) {
+        String key = source.getPeerId() + "#" + intPayload(message, "streamId");
+        Object op = message.getPayload("op");
+        if ("open".equals(op)) {
+            open(message, source);
+        } else if ("credit".equals(op)) {
+            Outbound stream = outbound.get(key);
+            if (stream != null) {
+                stream.credit.addAndGet(intPayload(message, "bytes"));
+                schedulePump(stream);
+            }
+        } else if ("cancel".equals(op)) {
+            Outbound stream = outbound.get(key);
+            if (stream != null) close(stream);
+        }
+    }
+
+    private void open(Message message, TCPNetworkModule.PeerConnection source) {
+        int streamId = intPayload(message, "streamId");
+        String filename = (String) message.getPayload("filename");
+        long offset = ((Number) message.getPayload("offset")).longValue();
+        long length = ((Number) message.getPayload("length")).longValue();
+        File file = new File(sharedDir, filename);
+        if (!file.isFile()) {
+            Message notFound = new Message(MessageType.FILE_COMPLETE, networkModule.getNodeId());
+            notFound.addPayload("streamId", streamId);
+            notFound.addPayload("error", "El peer no tiene el archivo: " + filename);
+            notFound.addPayload("code", NOT_FOUND);
+            source.send(notFound);
+            System.out.println("⚠ No encontrado (stream): " + filename);
+            return;
+        }
+        try {
+            long size = file.length();
+            long start = Math.min(offset, size);
+            long end = start + Math.min(length, size - start);
+            Outbound stream = new Outbound(source.getPeerId(), streamId,
+                    FileChannel.open(file.toPath(), StandardOpenOption.READ),
+                    start, end, size, file.lastModified(), intPayload(message, "window"));
+            outbound.put(source.getPeerId() + "#" + streamId, stream);
+            FileTransferTCP.transferStarted();
+            streamsServed.increment();
+            System.out.println("→ GET (stream " + streamId + "): " + filename);
+            schedulePump(stream);
+        } catch (IOException e) {
+            System.err.println("Error en transferencia: " + e.getMessage());
+        }
+    }
+
+    private void schedulePump(Outbound stream) {
+        if (!stream.closed && !stream.pumping.get())
+            networkModule.getThreadManager().executeTask(() -> pump(stream));
+    }
+
+    /** Envía bloques mientras quede ventana; un solo hilo por stream a la vez. */
+    private void pump(Outbound stream) {
+        while (stream.pumping.compareAndSet(false, true)) {
+            try {
+                while (!stream.closed && stream.position < stream.end) {
+                    int len = (int) Math.min(CHUNK_SIZE, stream.end - stream.position);
+                    if (stream.credit.get() < len) break;
+                    ByteBuffer buf = ByteBuffer.allocate(len);
+                    while (buf.hasRemaining()) {
+                        if (stream.channel.read(buf, stream.position + buf.position()) < 0)
+                            throw new EOFException("Archivo truncado durante el envío");
+                    }
+                    Message data = new Message(MessageType.FILE_DATA, networkModule.getNodeId());
+                    data.addPayload("streamId", stream.streamId);
+                    data.addPayload("offset", stream.position);
+                    data.addPayload("data", buf.array());
+                    stream.credit.addAndGet(-len);
+                    stream.position += len;
+                    bytesOut.add(len);
+                    networkModule.sendMessage(data, stream.peerId);
+                }
+                if (!stream.closed && stream.position >= stream.end) {
+                    Message done = new Message(MessageType.FILE_COMPLETE, networkModule.getNodeId());
+                    done.addPayload("streamId", stream.streamId);
+                    done.addPayload("size", stream.size);
+                    done.addPayload("lastModified", stream.lastModified);
+                    done.addPayload("count", stream.end - stream.start);
+                    networkModule.sendMessage(done, stream.peerId);
+                    close(stream);
+                }
+            } catch (IOException e) {
+                System.err.println("Error en transferencia: " + e.getMessage());
+                Message failed = new Message(MessageType.FILE_COMPLETE, networkModule.getNodeId());
+                failed.addPayload("streamId", stream.streamId);
+                failed.addPayload("error", e.getMessage());
+                networkModule.sendMessage(failed, stream.peerId);
+                close(stream);
+            } finally {
+                stream.pumping.set(false);
+            }
+            // Un crédito llegado mientras se enviaba no programa otro hilo: se repite aquí
+            int next = (int) Math.min(CHUNK_SIZE, stream.end - stream.position);
+            if (stream.closed || stream.position >= stream.end || stream.credit.get() < next) return;
+        }
+    }
+
+    private void close(Outbound stream) {
+        if (outbound.remove(stream.peerId + "#" + stream.streamId, stream)) {
+            stream.closed = true;
+            FileTransferTCP.transferFinished();
+            try {
+                stream.channel.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private static int intPayload(Message message, String key) {
+        Object value = message.getPayload(key);
+        return value instanceof Number ? ((Number) value).intValue() : -1;
+    }
+}
@@ -2,28 +2,77 @@ package com.p2p.network;
 
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 /**
  * Servidor permanente de archivos en puerto 8889.
  *
  * PROTOCOLO (prefijo en primer mensaje UTF):
  *   "GET:<filename>"                   → descarga al cliente
+ *   "GET:<filename>:<offset>:<length>" → solo ese rango de bytes
+ *   "HASH:<filename>:<chunkSize>"      → SHA-256 de cada bloque (descarga en enjambre)
+ *   "DELTA:<filename>:<origTimestamp>:<blockSize>"
+ *                                      → subida por deltas (ver DeltaSync); misma
+ *                                        detección de colisiones que PUT
  *   "PUT:<filename>:<origTimestamp>"   → subida del cliente; detecta colisiones
  *
  * Colisión: si el archivo local fue modificado DESPUÉS de origTimestamp,
  * la versión del editor se guarda como "<filename>.CONFLICT_<ip>_<ts>"
  * y el servidor responde "CONFLICT:<conflictFilename>".
  * Sin colisión: sobreescribe el original y responde "OK".
+ * La subida se recibe en un temporal y se renombra al final (atómico).
+ *
+ * ZERO-COPY: el servidor envía los GET con FileChannel.transferTo sobre el
+ * SocketChannel (sendfile). Solo en el envío: el cliente lee de un Socket
+ * sin canal (para conservar el SO_TIMEOUT), y transferFrom sobre un stream
+ * copiaría a un buffer intermedio igual que el bucle, así que recibe con
+ * buffer de BUFFER_SIZE. Con -Dp2p.zerocopy=false también el envío usa la
+ * copia por streams (útil para comparar rendimiento).
+ *
+ * STREAMS: si hay un FileStreamMux y el dueño está conectado con el codec
+ * binary2, las descargas (completas y por rango) viajan multiplexadas por
+ * la conexión de mensajes; este puerto queda para peers anteriores, para
+ * las subidas y como respaldo si el stream falla.
  */
 public class FileTransferTCP {
 
     public static final int FILE_PORT   = 8889;
     public static final int BUFFER_SIZE = 65536;
     public static final int TIMEOUT_MS  = 30_000;
+    public static final int RESUME_ATTEMPTS = 3;
+    public static final boolean ZERO_COPY =
+            !"false".equalsIgnoreCase(System.getProperty("p2p.zerocopy"));
+
+    // Temporales de transferencias en curso (subidas y descargas en enjambre)
+    private static final String UPLOAD_PREFIX   = ".upload-";
+    private static final String DOWNLOAD_PREFIX = ".download-";
+    private static final String PARTIAL_SUFFIX  = ".part";
+
+    // Sufijo ":<offset>:<length>" de un GET por rango
+    private static final Pattern RANGE_SUFFIX = Pattern.compile(":(\\d+):(\\d+)$");
+
+    // ruta absoluta → hashes por bloque (se invalida si cambia tamaño o mtime)
+    private static final ConcurrentHashMap<String, ChunkManifest> manifests = new ConcurrentHashMap<>();
+
+    // Clientes atendidos ahora mismo (se anuncia en los heartbeats como carga)
+    private static final AtomicInteger activeTransfers = new AtomicInteger();
 
-    private static volatile ServerSocket serverSocket;
+    private static volatile ServerSocketChannel serverChannel;
+    private static volatile FileStreamMux streamMux;
     private static final ExecutorService pool = Executors.newCachedThreadPool(r -> {
         Thread t = new Thread(r, "file-xfer");
         t.setDaemon(true);
@@ -35,17 +84,20 @@ public class FileTransferTCP {
     public static void startServer(String sharedDir) {
         pool.submit(() -> {
             try {
-                serverSocket = new ServerSocket();
-                serverSocket.setReuseAddress(true);
-                serverSocket.bind(new InetSocketAddress(FILE_PORT));
+                // ServerSocketChannel para que cada cliente tenga un SocketChannel (transferTo)
+                serverChannel = ServerSocketChannel.open();
+                serverChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+                serverChannel.bind(new InetSocketAddress(FILE_PORT));
                 System.out.println("✓ Servidor de archivos escuchando en puerto " + FILE_PORT);
 
-                while (!serverSocket.isClosed()) {
+                while (serverChannel.isOpen()) {
                     try {
-                        Socket client = serverSocket.accept();
+                        Socket client = serverChannel.accept().socket();
                         pool.submit(() -> handleClient(client, sharedDir));
-                    } catch (SocketException e) {
-                        if (!serverSocket.isClosed()) e.printStackTrace();
+                    } catch (ClosedChannelException e) {
+                        break;
+                    } catch (IOException e) {
+                        if (serverChannel.isOpen()) e.printStackTrace();
                     }
                 }
             } catch (IOException e) {
@@ -56,11 +108,29 @@ public class FileTransferTCP {
 
     public static void stopServer() {
         try {
-            if (serverSocket != null && !serverSocket.isClosed()) serverSocket.close();
+            if (serverChannel != null && serverChannel.isOpen()) serverChannel.close();
         } catch (IOException ignored) {}
     }
 
+    /** Transferencias que este nodo está sirviendo en este momento. */
+    public static int getActiveTransfers() {
+        return activeTransfers.get();
+    }
+
+    static void transferStarted() {
+        activeTransfers.incrementAndGet();
+    }
+
+    static void transferFinished() {
+        activeTransfers.decrementAndGet();
+    }
+
+    public static void setStreamMux(FileStreamMux mux) {
+        streamMux = mux;
+    }
+
     private static void handleClient(Socket client, String sharedDir) {
+        activeTransfers.incrementAndGet();
         try {
             client.setSoTimeout(TIMEOUT_MS);
             DataInputStream  dis = new DataInputStream(new BufferedInputStream(client.getInputStream()));
@@ -76,20 +146,43 @@ public class FileTransferTCP {
                 long   origTimestamp = (colon > 0) ? Long.parseLong(rest.substring(colon + 1)) : 0L;
                 String senderIp      = client.getInetAddress().getHostAddress();
                 handleUpload(filename, origTimestamp, senderIp, sharedDir, dis, dos);
+            } else if (command.startsWith("DELTA:")) {
+                // DELTA:<filename>:<origTimestamp>:<blockSize>
+                String rest      = command.substring(6);
+                int    colon2    = rest.lastIndexOf(':');
+                int    colon1    = rest.lastIndexOf(':', colon2 - 1);
+                String filename  = rest.substring(0, colon1);
+                long   origTs    = Long.parseLong(rest.substring(colon1 + 1, colon2));
+                int    blockSize = Integer.parseInt(rest.substring(colon2 + 1));
+                String senderIp  = client.getInetAddress().getHostAddress();
+                handleDeltaUpload(filename, origTs, blockSize, senderIp, sharedDir, dis, dos);
+            } else if (command.startsWith("HASH:")) {
+                // HASH:<filename>:<chunkSize>
+                String rest  = command.substring(5);
+                int    colon = rest.lastIndexOf(':');
+                handleManifest(rest.substring(0, colon), Integer.parseInt(rest.substring(colon + 1)),
+                        sharedDir, dos);
             } else {
-                // GET:<filename>  o  compatibilidad (solo nombre)
-                String filename = command.startsWith("GET:") ? command.substring(4) : command;
-                handleDownload(filename, sharedDir, dos);
+                // GET:<filename>[:<offset>:<length>]  o  compatibilidad (solo nombre)
+                String  filename = command.startsWith("GET:") ? command.substring(4) : command;
+                Matcher range    = RANGE_SUFFIX.matcher(filename);
+                if (range.find()) {
+                    handleRange(filename.substring(0, range.start()), Long.parseLong(range.group(1)),
+                            Long.parseLong(range.group(2)), sharedDir, client, dos);
+                } else {
+                    handleDownload(filename, sharedDir, client, dos);
+                }
             }
 
-        } catch (IOException e) {
+        } catch (IOException | RuntimeException e) {
             System.err.println("Error en transferencia: " + e.getMessage());
         } finally {
+            activeTransfers.decrementAndGet();
             try { client.close(); } catch (IOException ignored) {}
         }
     }
 
-    private static void handleDownload(String filename, String sharedDir,
+    private static void handleDownload(String filename, String sharedDir, Socket client,
                                        DataOutputStream dos) throws IOException {
         System.out.println("→ GET: " + filename);
         File file = new File(sharedDir, filename);
@@ -100,16 +193,140 @@ public class FileTransferTCP {
             System.out.println("⚠ No encontrado: " + filename);
             return;
         }
-        dos.writeLong(file.length());
+        long size = file.length();
+        dos.writeLong(size);
         dos.writeLong(file.lastModified());
         dos.flush();
 
-        try (FileInputStream fis = new FileInputStream(file)) {
-            byte[] buf = new byte[BUFFER_SIZE]; int n;
-            while ((n = fis.read(buf)) != -1) dos.write(buf, 0, n);
+        SocketChannel channel = client.getChannel();
+        if (ZERO_COPY && channel != null) {
+            try (FileChannel fc = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                sendRange(fc, 0, size, channel);
+            }
+        } else {
+            try (FileInputStream fis = new FileInputStream(file)) {
+                byte[] buf = new byte[BUFFER_SIZE]; int n;
+                while ((n = fis.read(buf)) != -1) dos.write(buf, 0, n);
+                dos.flush();
+            }
+        }
+        System.out.println("✓ Enviado: " + filename + " (" + size + " bytes)");
+    }
+
+    /**
+     * Rango: responde tamaño total, lastModified y los bytes enviados
+     * (length recortado al final del archivo), seguidos de esos bytes.
+     */
+    private static void handleRange(String filename, long offset, long length, String sharedDir,
+                                    Socket client, DataOutputStream dos) throws IOException {
+        File file = new File(sharedDir, filename);
+        if (!file.exists() || offset < 0 || length < 0) {
+            dos.writeLong(-1);
+            dos.writeLong(0);
+            dos.writeLong(0);
+            dos.flush();
+            return;
+        }
+        try (FileChannel fc = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size  = fc.size();
+            long count = Math.max(0, Math.min(length, size - offset));
+            dos.writeLong(size);
+            dos.writeLong(file.lastModified());
+            dos.writeLong(count);
             dos.flush();
+
+            SocketChannel channel = client.getChannel();
+            if (ZERO_COPY && channel != null) {
+                sendRange(fc, offset, count, channel);
+            } else {
+                sendRange(fc, offset, count, Channels.newChannel(dos));
+                dos.flush();
+            }
+        }
+    }
+
+    /** Hashes SHA-256 por bloque, para que el cliente verifique cada bloque recibido. */
+    private static void handleManifest(String filename, int chunkSize, String sharedDir,
+                                       DataOutputStream dos) throws IOException {
+        File file = new File(sharedDir, filename);
+        if (!file.exists() || chunkSize <= 0) {
+            dos.writeLong(-1);
+            dos.writeLong(0);
+            dos.writeInt(0);
+            dos.flush();
+            return;
+        }
+        ChunkManifest manifest = manifestFor(file, chunkSize);
+        dos.writeLong(manifest.size);
+        dos.writeLong(manifest.lastModified);
+        dos.writeInt(manifest.hashes.length);
+        for (byte[] hash : manifest.hashes) dos.write(hash);
+        dos.flush();
+    }
+
+    /** Reutiliza el manifiesto mientras el archivo no cambie (tamaño, mtime, bloque). */
+    private static ChunkManifest manifestFor(File file, int chunkSize) throws IOException {
+        String key = file.getAbsolutePath();
+        ChunkManifest cached = manifests.get(key);
+        if (cached != null && cached.chunkSize == chunkSize
+                && cached.size == file.length() && cached.lastModified == file.lastModified())
+            return cached;
+
+        long lastModified = file.lastModified();
+        long size         = file.length();
+        int  chunks       = (int) ((size + chunkSize - 1) / chunkSize);
+        byte[][] hashes   = new byte[chunks][];
+        byte[]   buf      = new byte[BUFFER_SIZE];
+        try (InputStream in = new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE)) {
+            for (int i = 0; i < chunks; i++) {
+                MessageDigest md = sha256();
+                long remaining = Math.min(chunkSize, size - (long) i * chunkSize);
+                while (remaining > 0) {
+                    int n = in.read(buf, 0, (int) Math.min(buf.length, remaining));
+                    if (n == -1) throw new IOException("Archivo truncado al calcular hashes");
+                    md.update(buf, 0, n);
+                    remaining -= n;
+                }
+                hashes[i] = md.digest();
+            }
+        }
+        ChunkManifest manifest = new ChunkManifest(size, lastModified, chunkSize, hashes);
+        manifests.put(key, manifest);
+        return manifest;
+    }
+
+    static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /** transferTo puede enviar menos de lo pedido: repetir hasta completar. */
+    private static void sendRange(FileChannel fc, long position, long count,
+                                  WritableByteChannel target) throws IOException {
+        long sent = 0;
+        while (sent < count) {
+            long n = fc.transferTo(position + sent, count - sent, target);
+            if (n <= 0) throw new IOException("Archivo truncado durante el envío");
+            sent += n;
+        }
+    }
+
+    /** Recibe exactamente count bytes del socket y los escribe desde position. */
+    private static void receiveRange(InputStream in, File dest, long position, long count)
+            throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(dest, "rw")) {
+            raf.seek(position);
+            byte[] buf = new byte[BUFFER_SIZE]; long remaining = count; int n;
+            while (remaining > 0) {
+                n = in.read(buf, 0, (int) Math.min(buf.length, remaining));
+                if (n == -1) throw new EOFException("Conexión cerrada a los " + (count - remaining)
+                        + " de " + count + " bytes");
+                raf.write(buf, 0, n); remaining -= n;
+            }
         }
-        System.out.println("✓ Enviado: " + filename + " (" + file.length() + " bytes)");
     }
 
     private static void handleUpload(String filename, long origTimestamp,
@@ -120,16 +337,66 @@ public class FileTransferTCP {
         long fileSize = dis.readLong();
         if (fileSize < 0) { dos.writeUTF("ERROR:tamaño inválido"); dos.flush(); return; }
 
-        // Leer bytes recibidos
-        byte[] receivedBytes = new byte[(int) fileSize];
-        int totalRead = 0;
-        while (totalRead < fileSize) {
-            int n = dis.read(receivedBytes, totalRead, (int)(fileSize - totalRead));
-            if (n == -1) break;
-            totalRead += n;
+        // Recibir a un temporal en el mismo directorio: memoria acotada a BUFFER_SIZE
+        new File(sharedDir).mkdirs();
+        File tmp = new File(sharedDir, UPLOAD_PREFIX + UUID.randomUUID() + PARTIAL_SUFFIX);
+        try {
+            receiveRange(dis, tmp, 0, fileSize);
+        } catch (IOException e) {
+            tmp.delete();
+            throw e;
         }
 
-        new File(sharedDir).mkdirs();
+        commitUpload(tmp, filename, origTimestamp, senderIp, sharedDir, dos);
+    }
+
+    /**
+     * Envía la firma de la versión local; el editor responde con el delta y
+     * se reconstruye su versión en un temporal. Si el archivo cambió entre la
+     * firma y la reconstrucción, o el SHA-256 no coincide, responde "RETRY"
+     * (el editor hace entonces un PUT completo).
+     */
+    private static void handleDeltaUpload(String filename, long origTimestamp, int blockSize,
+                                          String senderIp, String sharedDir,
+                                          DataInputStream dis, DataOutputStream dos) throws IOException {
+        System.out.println("→ DELTA: " + filename + " (origTs=" + origTimestamp + ")");
+        File localFile = new File(sharedDir, filename);
+        if (!localFile.exists() || blockSize < DeltaSync.MIN_BLOCK || blockSize > DeltaSync.MAX_BLOCK) {
+            dos.writeLong(-1);
+            dos.writeLong(0);
+            dos.writeInt(0);
+            dos.flush();
+            return;
+        }
+        long basisModified = localFile.lastModified();
+        DeltaSync.writeSignature(localFile, blockSize, dos);
+
+        if (!dis.readBoolean()) return; // el editor prefirió un PUT completo
+        long newSize = dis.readLong();
+
+        File tmp = new File(sharedDir, UPLOAD_PREFIX + UUID.randomUUID() + PARTIAL_SUFFIX);
+        boolean valid;
+        try {
+            valid = DeltaSync.applyDelta(localFile, blockSize, newSize, dis, tmp)
+                    && localFile.lastModified() == basisModified;
+        } catch (IOException e) {
+            tmp.delete();
+            throw e;
+        }
+        if (!valid) {
+            tmp.delete();
+            System.out.println("⚠ Delta de '" + filename + "' no aplicable, se pide PUT completo");
+            dos.writeUTF("RETRY");
+            dos.flush();
+            return;
+        }
+        commitUpload(tmp, filename, origTimestamp, senderIp, sharedDir, dos);
+    }
+
+    /** Coloca la versión recibida (tmp) en su sitio o como .CONFLICT_ y responde. */
+    private static void commitUpload(File tmp, String filename, long origTimestamp,
+                                     String senderIp, String sharedDir,
+                                     DataOutputStream dos) throws IOException {
         File localFile = new File(sharedDir, filename);
 
         // Detectar colisión: el dueño modificó el archivo DESPUÉS de que fue prestado
@@ -137,15 +404,11 @@ public class FileTransferTCP {
 
         if (collision) {
             String conflictName = filename + ".CONFLICT_" + senderIp + "_" + System.currentTimeMillis();
-            try (FileOutputStream fos = new FileOutputStream(new File(sharedDir, conflictName))) {
-                fos.write(receivedBytes);
-            }
+            moveIntoPlace(tmp, new File(sharedDir, conflictName));
             System.out.println("⚠ COLISIÓN en '" + filename + "' → conflicto: " + conflictName);
             dos.writeUTF("CONFLICT:" + conflictName);
         } else {
-            try (FileOutputStream fos = new FileOutputStream(localFile)) {
-                fos.write(receivedBytes);
-            }
+            moveIntoPlace(tmp, localFile);
             localFile.setLastModified(System.currentTimeMillis());
             System.out.println("✓ Actualizado desde " + senderIp + ": " + filename);
             dos.writeUTF("OK");
@@ -153,40 +416,240 @@ public class FileTransferTCP {
         dos.flush();
     }
 
+    /** Renombrado atómico del temporal; si el FS no lo soporta, reemplazo simple. */
+    static void moveIntoPlace(File tmp, File target) throws IOException {
+        try {
+            Files.move(tmp.toPath(), target.toPath(),
+                    StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            tmp.delete();
+            throw e;
+        }
+    }
+
+    /** Temporal para una descarga en curso dentro de dir. */
+    static File newPartialDownload(String dir) {
+        return new File(dir, DOWNLOAD_PREFIX + UUID.randomUUID() + PARTIAL_SUFFIX);
+    }
+
+    /** true si el archivo es una transferencia en curso (no debe compartirse ni indexarse). */
+    public static boolean isPartialTransfer(File file) {
+        String name = file.getName();
+        return (name.startsWith(UPLOAD_PREFIX) || name.startsWith(DOWNLOAD_PREFIX))
+                && name.endsWith(PARTIAL_SUFFIX);
+    }
+
     // ── CLIENTE: DESCARGA ────────────────────────────────────────────────
 
     /**
      * Descarga un archivo y devuelve el DownloadResult con el lastModified original.
+     *
+     * Reanudable: lo recibido se guarda en ".download-<filename>.<lastModified>.part".
+     * Si la conexión se corta se reintenta desde el último byte (RESUME_ATTEMPTS
+     * veces); el parcial sobrevive también entre llamadas. Solo se continúa si
+     * el lastModified del dueño sigue siendo el del parcial; si no, se descarta.
      */
     public static DownloadResult downloadFile(String peerNodeId, String filename, String destDir)
             throws IOException {
-        String host = peerNodeId.contains(":") ? peerNodeId.split(":")[0] : peerNodeId;
+        new File(destDir).mkdirs();
+        FileStreamMux mux = streamMux;
+        if (mux != null && mux.canStream(peerNodeId)) {
+            File partial = newPartialDownload(destDir);
+            try {
+                FileStreamMux.StreamResult result = mux.download(peerNodeId, filename, 0, Long.MAX_VALUE, partial);
+                File dest = new File(destDir, filename);
+                moveIntoPlace(partial, dest);
+                System.out.println("✓ Recibido: " + filename + " (" + result.size + " bytes, stream), ts="
+                        + result.lastModified);
+                return new DownloadResult(dest, result.lastModified);
+            } catch (FileNotFoundException e) {
+                partial.delete();
+                throw e;
+            } catch (IOException e) {
+                partial.delete();
+                System.out.println("⚠ Stream de '" + filename + "' fallido (" + e.getMessage()
+                        + "), se usa el puerto de archivos");
+            }
+        }
+        IOException last = null;
+        for (int attempt = 0; attempt < RESUME_ATTEMPTS; attempt++) {
+            try {
+                return fetchResumable(peerNodeId, filename, destDir);
+            } catch (FileNotFoundException e) {
+                throw e;
+            } catch (IOException e) {
+                last = e;
+                File partial = findPartial(destDir, filename);
+                System.out.println("⚠ Descarga de '" + filename + "' interrumpida (" + e.getMessage()
+                        + "), reanudando desde byte " + (partial != null ? partial.length() : 0));
+            }
+        }
+        throw last;
+    }
 
-        try (Socket socket = new Socket()) {
-            socket.connect(new InetSocketAddress(host, FILE_PORT), TIMEOUT_MS);
-            socket.setSoTimeout(TIMEOUT_MS);
+    private static DownloadResult fetchResumable(String peerNodeId, String filename, String destDir)
+            throws IOException {
+        File partial = findPartial(destDir, filename);
+        long offset  = partial != null ? partial.length() : 0;
+        RangeResult range;
+
+        try (Socket socket = connect(peerNodeId)) {
+            range = requestRange(socket, filename, offset, Long.MAX_VALUE);
+
+            if (partial != null && (partialTimestamp(partial) != range.lastModified || offset > range.size)) {
+                // El dueño cambió el archivo: lo recibido ya no sirve
+                System.out.println("⚠ Parcial obsoleto de '" + filename + "', descarga desde cero");
+                partial.delete();
+                partial = null;
+            } else {
+                if (partial == null) {
+                    partial = new File(destDir, DOWNLOAD_PREFIX + filename + "."
+                            + range.lastModified + PARTIAL_SUFFIX);
+                    new FileOutputStream(partial).close(); // crear/vaciar el parcial antes de recibir
+                }
+                receiveRange(socket.getInputStream(), partial, offset, range.count);
+            }
+        }
+        if (partial == null)
+            return fetchResumable(peerNodeId, filename, destDir);
+
+        File dest = new File(destDir, filename);
+        moveIntoPlace(partial, dest);
+        System.out.println("✓ Recibido: " + filename + " (" + range.size + " bytes"
+                + (offset > 0 ? ", reanudado en " + offset : "") + "), ts=" + range.lastModified);
+        return new DownloadResult(dest, range.lastModified);
+    }
+
+    /**
+     * Descarga los bytes [offset, offset+length) del archivo remoto y los escribe
+     * en la misma posición de dest (length se recorta al final del archivo).
+     */
+    public static RangeResult downloadRange(String peerNodeId, String filename, long offset, long length,
+                                            File dest) throws IOException {
+        FileStreamMux mux = streamMux;
+        if (mux != null && mux.canStream(peerNodeId)) {
+            try {
+                FileStreamMux.StreamResult result = mux.download(peerNodeId, filename, offset, length, dest);
+                return new RangeResult(result.size, result.lastModified, result.count);
+            } catch (FileNotFoundException e) {
+                throw e;
+            } catch (IOException e) {
+                System.out.println("⚠ Stream de rango de '" + filename + "' fallido (" + e.getMessage()
+                        + "), se usa el puerto de archivos");
+            }
+        }
+        try (Socket socket = connect(peerNodeId)) {
+            RangeResult range = requestRange(socket, filename, offset, length);
+            receiveRange(socket.getInputStream(), dest, offset, range.count);
+            return range;
+        }
+    }
+
+    /**
+     * Envía el GET (completo si se pide todo desde 0, compatible con servidores
+     * anteriores; si no, por rango) y lee la cabecera. El cuerpo queda en el socket.
+     */
+    private static RangeResult requestRange(Socket socket, String filename, long offset, long length)
+            throws IOException {
+        boolean whole = offset == 0 && length == Long.MAX_VALUE;
+        DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        dos.writeUTF(whole ? "GET:" + filename : "GET:" + filename + ":" + offset + ":" + length);
+        dos.flush();
+
+        // Sin buffer: los bytes que siguen a la cabecera los lee receiveRange
+        byte[] header = new byte[whole ? 16 : 24];
+        new DataInputStream(socket.getInputStream()).readFully(header);
+        ByteBuffer hb = ByteBuffer.wrap(header);
+        long size         = hb.getLong();
+        long lastModified = hb.getLong();
+        long count        = whole ? size : hb.getLong();
+        if (size < 0) throw new FileNotFoundException("El peer no tiene el archivo: " + filename);
+        if (count < 0 || count > length)
+            throw new IOException("Rango recibido mayor que el pedido: " + count);
+        return new RangeResult(size, lastModified, count);
+    }
+
+    /** Parcial de una descarga anterior de filename en dir, o null. */
+    private static File findPartial(String dir, String filename) {
+        File[] partials = new File(dir).listFiles((d, name) ->
+                filename.equals(partialName(name)) && partialTimestamp(new File(d, name)) != -1);
+        return partials == null || partials.length == 0 ? null : partials[0];
+    }
+
+    /**
+     * Archivo al que pertenece un parcial ".download-<nombre>.<ts>.part", o
+     * null. Se compara el nombre entero: con un prefijo, el parcial de
+     * "a.txt.bak" pasaría por uno de "a.txt".
+     */
+    private static String partialName(String name) {
+        if (!name.startsWith(DOWNLOAD_PREFIX) || !name.endsWith(PARTIAL_SUFFIX))
+            return null;
+        String base = name.substring(DOWNLOAD_PREFIX.length(), name.length() - PARTIAL_SUFFIX.length());
+        int dot = base.lastIndexOf('.');
+        return dot > 0 ? base.substring(0, dot) : null;
+    }
+
+    /** lastModified del dueño codificado en el nombre del parcial (-1 si no es válido). */
+    private static long partialTimestamp(File partial) {
+        String name = partial.getName();
+        String ts = name.substring(name.lastIndexOf('.', name.length() - PARTIAL_SUFFIX.length() - 1) + 1,
+                name.length() - PARTIAL_SUFFIX.length());
+        try {
+            return Long.parseLong(ts);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
 
+    /** Pide al peer los hashes por bloque de un archivo. */
+    public static ChunkManifest fetchManifest(String peerNodeId, String filename, int chunkSize)
+            throws IOException {
+        try (Socket socket = connect(peerNodeId)) {
             DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
             DataInputStream  dis = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
 
-            dos.writeUTF("GET:" + filename);
+            dos.writeUTF("HASH:" + filename + ":" + chunkSize);
             dos.flush();
 
-            long fileSize     = dis.readLong();
+            long size         = dis.readLong();
             long lastModified = dis.readLong();
-            if (fileSize < 0) throw new IOException("El peer no tiene el archivo: " + filename);
-
-            new File(destDir).mkdirs();
-            File dest = new File(destDir, filename);
-            try (FileOutputStream fos = new FileOutputStream(dest)) {
-                byte[] buf = new byte[BUFFER_SIZE]; long remaining = fileSize; int n;
-                while (remaining > 0 &&
-                       (n = dis.read(buf, 0, (int) Math.min(buf.length, remaining))) != -1) {
-                    fos.write(buf, 0, n); remaining -= n;
-                }
-            }
-            System.out.println("✓ Recibido: " + filename + " (" + fileSize + " bytes), ts=" + lastModified);
-            return new DownloadResult(dest, lastModified);
+            int  chunks       = dis.readInt();
+            if (size < 0) throw new IOException("El peer no tiene el archivo: " + filename);
+            if (chunks != (int) ((size + chunkSize - 1) / chunkSize))
+                throw new IOException("Manifiesto inconsistente para " + filename);
+
+            byte[][] hashes = new byte[chunks][32];
+            for (byte[] hash : hashes) dis.readFully(hash);
+            return new ChunkManifest(size, lastModified, chunkSize, hashes);
+        }
+    }
+
+    /**
+     * Lee un rango del archivo remoto en buf.
+     * @return bytes leídos (menos que length si el rango pasa del final)
+     */
+    static int readRange(String peerNodeId, String filename, long offset, int length, byte[] buf)
+            throws IOException {
+        try (Socket socket = connect(peerNodeId)) {
+            // lastModified no se compara: el hash del bloque ya valida el contenido
+            RangeResult range = requestRange(socket, filename, offset, Math.min(length, buf.length));
+            new DataInputStream(socket.getInputStream()).readFully(buf, 0, (int) range.count);
+            return (int) range.count;
+        }
+    }
+
+    private static Socket connect(String peerNodeId) throws IOException {
+        String host = peerNodeId.contains(":") ? peerNodeId.split(":")[0] : peerNodeId;
+        Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(host, FILE_PORT), TIMEOUT_MS);
+            socket.setSoTimeout(TIMEOUT_MS);
+            return socket;
+        } catch (IOException e) {
+            socket.close();
+            throw e;
         }
     }
 
@@ -224,8 +687,87 @@ public class FileTransferTCP {
         }
     }
 
+    /**
+     * Sube el archivo editado enviando solo lo que cambió respecto a la versión
+     * del dueño (ver DeltaSync). Mismas respuestas que uploadFile; si el dueño
+     * no tiene el archivo, no soporta "DELTA:" o pide "RETRY", se hace un PUT completo.
+     */
+    public static String uploadDelta(String peerNodeId, String filename,
+                                     File editedFile, long origTimestamp) throws IOException {
+        if (editedFile.length() > DeltaSync.MAX_DELTA_FILE)
+            return uploadFile(peerNodeId, filename, editedFile, origTimestamp);
+
+        byte[] data = Files.readAllBytes(editedFile.toPath());
+        int blockSize = DeltaSync.blockSizeFor(data.length);
+        String response;
+        try (Socket socket = connect(peerNodeId)) {
+            DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            DataInputStream  dis = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+
+            dos.writeUTF("DELTA:" + filename + ":" + origTimestamp + ":" + blockSize);
+            dos.flush();
+
+            DeltaSync.Signature sig;
+            try {
+                sig = DeltaSync.readSignature(dis, blockSize);
+            } catch (FileNotFoundException | EOFException e) {
+                sig = null; // sin base en el dueño o servidor anterior
+            }
+            if (sig == null) {
+                response = "RETRY";
+            } else {
+                dos.writeBoolean(true);
+                dos.writeLong(data.length);
+                long literal = DeltaSync.writeDelta(data, sig, dos);
+                response = dis.readUTF();
+                System.out.println("↩ Delta '" + filename + "': " + literal + " de " + data.length
+                        + " bytes enviados, respuesta " + response);
+            }
+        }
+        if ("RETRY".equals(response))
+            return uploadFile(peerNodeId, filename, editedFile, origTimestamp);
+        return response;
+    }
+
     // ── DTO ──────────────────────────────────────────────────────────────
 
+    /** Cabecera de un GET por rango: tamaño total, lastModified y bytes que siguen. */
+    public static class RangeResult {
+        public final long size;
+        public final long lastModified;
+        public final long count;
+
+        public RangeResult(long size, long lastModified, long count) {
+            this.size         = size;
+            this.lastModified = lastModified;
+            this.count        = count;
+        }
+    }
+
+    /** Hashes SHA-256 de cada bloque de chunkSize bytes de un archivo. */
+    public static class ChunkManifest {
+        public final long size;
+        public final long lastModified;
+        public final int chunkSize;
+        public final byte[][] hashes;
+
+        public ChunkManifest(long size, long lastModified, int chunkSize, byte[][] hashes) {
+            this.size         = size;
+            this.lastModified = lastModified;
+            this.chunkSize    = chunkSize;
+            this.hashes       = hashes;
+        }
+
+        public int getChunkCount() {
+            return hashes.length;
+        }
+
+        /** Bytes del bloque i (el último puede ser más corto). */
+        public int chunkLength(int i) {
+            return (int) Math.min(chunkSize, size - (long) i * chunkSize);
+        }
+    }
+
     /** Resultado de una descarga: archivo local + lastModified del dueño. */
     public static class DownloadResult {
         public final File file;
@@ -0,0 +1,56 @@
+package com.p2p.network;
+
+import java.io.*;
+
+/**
+ * Codec de respaldo: serialización Java estándar sobre los mismos
+ * ObjectInputStream/ObjectOutputStream del handshake.
+ * Se usa solo con peers que no negocian el codec binario.
+ */
+public class JavaSerializationCodec implements MessageCodec {
+
+    private final ObjectInputStream  ois;
+    private final ObjectOutputStream oos;
+
+    public JavaSerializationCodec(ObjectInputStream ois, ObjectOutputStream oos) {
+        this.ois = ois;
+        this.oos = oos;
+    }
+
+    @Override
+    public String getName() {
+        return JAVA;
+    }
+
+    @Override
+    public void write(Message message) throws IOException {
+        oos.writeObject(message);
+        oos.reset(); // Evitar que ObjectOutputStream cachée referencias antiguas
+    }
+
+    @Override
+    public void flush() throws IOException {
+        oos.flush();
+    }
+
+    @Override
+    public Message read() throws IOException {
+        try {
+            return (Message) ois.readObject();
+        } catch (ClassNotFoundException e) {
+            throw new IOException("Clase desconocida en el stream: " + e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public void close() {
+        try {
+            ois.close();
+        } catch (IOException ignored) {
+        }
+        try {
+            oos.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
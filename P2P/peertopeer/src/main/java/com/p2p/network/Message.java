@@ -22,6 +22,16 @@ public class Message implements Serializable {
         this.timestamp = System.currentTimeMillis();
     }
 
+    /** Reconstrucción desde el cable (lo usa BinaryMessageCodec). */
+    Message(String id, MessageType type, String senderId, long timestamp,
+            Map<String, Object> payload) {
+        this.id = id;
+        this.type = type;
+        this.senderId = senderId;
+        this.payload = payload;
+        this.timestamp = timestamp;
+    }
+
     public void addPayload(String key, Object value) {
         payload.put(key, value);
     }
@@ -0,0 +1,85 @@
+package com.p2p.network;
+
+import java.io.*;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Codec de cable para los mensajes de una PeerConnection.
+ *
+ * El codec se negocia por conexión durante el handshake:
+ *   TCP_SYN      → payload "codecs": lista de codecs que ofrece el cliente (en orden de preferencia)
+ *   TCP_SYN_ACK  → payload "codec":  codec elegido por el servidor
+ *
+ * El handshake siempre viaja con serialización Java para que un peer antiguo
+ * (que no envía "codecs" ni entiende "codec") siga funcionando: en ese caso
+ * ambos lados se quedan con {@link #JAVA}. {@link #BINARY_V2} es el binario
+ * con heartbeats de tamaño fijo; frente a un peer que solo conoce "binary"
+ * se negocia este último.
+ */
+public interface MessageCodec {
+
+    String BINARY    = "binary";
+    String BINARY_V2 = "binary2";
+    String JAVA      = "java";
+
+    /** Codecs soportados por este nodo, en orden de preferencia. */
+    List<String> SUPPORTED = List.of(BINARY_V2, BINARY, JAVA);
+
+    String getName();
+
+    /** Escribe un mensaje en el buffer de salida (no hace flush). */
+    void write(Message message) throws IOException;
+
+    void flush() throws IOException;
+
+    /** Bloquea hasta leer un mensaje completo. */
+    Message read() throws IOException;
+
+    void close();
+
+    // ── Negociación ──────────────────────────────────────────────────────
+
+    /**
+     * Codecs que se ofrecen en el TCP_SYN. Con -Dp2p.codec=java se fuerza
+     * la serialización Java (útil para depurar o comparar).
+     */
+    static ArrayList<String> offered() {
+        String forced = System.getProperty("p2p.codec");
+        if (forced != null && SUPPORTED.contains(forced)) {
+            ArrayList<String> only = new ArrayList<>();
+            only.add(forced);
+            if (!JAVA.equals(forced)) only.add(JAVA);
+            return only;
+        }
+        return new ArrayList<>(SUPPORTED);
+    }
+
+    /** Elige el primer codec ofrecido por el cliente que este nodo soporte. */
+    static String negotiate(Object offeredPayload) {
+        if (offeredPayload instanceof List<?> offered) {
+            for (Object name : offered) {
+                if (SUPPORTED.contains(name)) return (String) name;
+            }
+        }
+        return JAVA;
+    }
+
+    /**
+     * Abre el codec elegido sobre el socket ya negociado. Los streams de objetos
+     * usados en el handshake se reutilizan solo con el codec Java.
+     */
+    static MessageCodec open(String name, Socket socket,
+                             ObjectInputStream ois, ObjectOutputStream oos) throws IOException {
+        if (isBinary(name)) {
+            return new BinaryMessageCodec(socket.getInputStream(), socket.getOutputStream(),
+                    BINARY_V2.equals(name));
+        }
+        return new JavaSerializationCodec(ois, oos);
+    }
+
+    static boolean isBinary(String name) {
+        return BINARY.equals(name) || BINARY_V2.equals(name);
+    }
+}
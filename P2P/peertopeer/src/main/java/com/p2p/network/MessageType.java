@@ -32,5 +32,14 @@ public enum MessageType {
     NACK_RESPONSE,
 
     // Logs distribuidos
-    LOG_REQUEST, LOG_RESPONSE
+    LOG_REQUEST, LOG_RESPONSE,
+
+    // Índice de nombres distribuido (modo DHT)
+    DHT_FIND, DHT_FOUND, DHT_STORE,
+
+    // Membresía por gossip
+    GOSSIP,
+
+    // Difusión en árbol (Plumtree)
+    BCAST_IHAVE, BCAST_PRUNE, BCAST_GRAFT
 }
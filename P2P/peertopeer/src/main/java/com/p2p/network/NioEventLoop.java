@@ -0,0 +1,230 @@
+package com.p2p.network;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Consumer;
+
+/**
+ * Hilo de E/S no bloqueante (modo -Dp2p.transport=nio).
+ *
+ * Cada loop tiene su propio Selector y atiende a muchas PeerConnection:
+ *   OP_ACCEPT → entrega el SocketChannel aceptado al callback (handshake)
+ *   OP_READ   → acumula bytes en el buffer de lectura de la conexión y
+ *               despacha cada frame completo a TCPNetworkModule
+ *   OP_WRITE  → vacía la OutboundQueue de la conexión por lotes
+ *
+ * Todo cambio de registro/intereses se hace en el propio hilo del loop
+ * a través de {@link #execute(Runnable)}.
+ */
+class NioEventLoop implements Runnable {
+
+    /** Tamaño inicial del buffer de lectura por conexión. */
+    static final int READ_BUFFER_SIZE = 16 * 1024;
+
+    /** Marca los hilos de E/S: en ellos send() nunca debe bloquearse. */
+    private static final ThreadLocal<Boolean> IO_THREAD = ThreadLocal.withInitial(() -> false);
+
+    private final TCPNetworkModule module;
+    private final Selector selector;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final Thread thread;
+    private volatile boolean running = true;
+
+    NioEventLoop(String name, TCPNetworkModule module) throws IOException {
+        this.module   = module;
+        this.selector = Selector.open();
+        this.thread   = new Thread(this, name);
+        this.thread.setDaemon(true);
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    /** Ejecuta la tarea en el hilo del loop. */
+    void execute(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    boolean inLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    static boolean isIoThread() {
+        return IO_THREAD.get();
+    }
+
+    void registerAcceptor(ServerSocketChannel server, Consumer<SocketChannel> onAccept) {
+        execute(() -> {
+            try {
+                server.configureBlocking(false);
+                server.register(selector, SelectionKey.OP_ACCEPT, onAccept);
+            } catch (IOException e) {
+                System.err.println("⚠ No se pudo registrar el acceptor NIO: " + e.getMessage());
+            }
+        });
+    }
+
+    void register(TCPNetworkModule.PeerConnection conn) {
+        execute(() -> {
+            try {
+                int ops = SelectionKey.OP_READ;
+                // Lo enviado en onPeerConnected ya está en cola antes del registro
+                if (conn.getOutboundQueue().isDrainScheduled()) ops |= SelectionKey.OP_WRITE;
+                conn.getChannel().register(selector, ops, conn);
+            } catch (IOException e) {
+                closeAndNotify(null, conn);
+            }
+        });
+    }
+
+    /** Pide OP_WRITE para la conexión (llamado desde PeerConnection.send). */
+    void requestWrite(TCPNetworkModule.PeerConnection conn) {
+        execute(() -> {
+            SelectionKey key = conn.getChannel().keyFor(selector);
+            if (key != null && key.isValid())
+                key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+        });
+    }
+
+    void shutdown() {
+        // Encolado tras los cierres pendientes para que se ejecuten antes de salir
+        execute(() -> running = false);
+    }
+
+    @Override
+    public void run() {
+        IO_THREAD.set(true);
+        while (running) {
+            try {
+                selector.select();
+                runTasks();
+
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    if (!key.isValid()) continue;
+
+                    if (key.isAcceptable()) {
+                        accept(key);
+                        continue;
+                    }
+                    TCPNetworkModule.PeerConnection conn =
+                            (TCPNetworkModule.PeerConnection) key.attachment();
+                    if (key.isReadable()) read(key, conn);
+                    if (key.isValid() && key.isWritable()) flush(key, conn);
+                }
+            } catch (IOException | ClosedSelectorException e) {
+                if (running)
+                    System.err.println("⚠ Error en loop NIO " + thread.getName() + ": " + e.getMessage());
+            }
+        }
+        runTasks();
+        try {
+            selector.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                System.err.println("⚠ Error en tarea NIO: " + e.getMessage());
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void accept(SelectionKey key) {
+        ServerSocketChannel server = (ServerSocketChannel) key.channel();
+        Consumer<SocketChannel> onAccept = (Consumer<SocketChannel>) key.attachment();
+        try {
+            SocketChannel channel;
+            while ((channel = server.accept()) != null)
+                onAccept.accept(channel);
+        } catch (IOException e) {
+            if (running)
+                System.err.println("⚠ Error aceptando conexión: " + e.getMessage());
+        }
+    }
+
+    // ── Lectura ──────────────────────────────────────────────────────────
+
+    private void read(SelectionKey key, TCPNetworkModule.PeerConnection conn) {
+        ByteBuffer buf = conn.getReadBuffer();
+        int n;
+        try {
+            n = conn.getChannel().read(buf);
+        } catch (IOException e) {
+            n = -1;
+        }
+        if (n < 0) {
+            closeAndNotify(key, conn);
+            return;
+        }
+
+        buf.flip();
+        try {
+            while (buf.remaining() >= 4) {
+                int length = buf.getInt(buf.position());
+                if (length < 0 || length > BinaryMessageCodec.MAX_FRAME_SIZE)
+                    throw new IOException("Tamaño de frame inválido: " + length);
+
+                if (buf.remaining() < 4 + length) {
+                    if (buf.capacity() < 4 + length) {
+                        // Frame más grande que el buffer: crecer y esperar el resto
+                        ByteBuffer bigger = ByteBuffer.allocate(4 + length);
+                        bigger.put(buf);
+                        conn.setReadBuffer(bigger);
+                        return;
+                    }
+                    break;
+                }
+
+                buf.position(buf.position() + 4);
+                Message message = conn.getBinaryCodec()
+                        .decode(buf.array(), buf.arrayOffset() + buf.position(), length);
+                buf.position(buf.position() + length);
+
+                if (!module.dispatch(message, conn)) {
+                    closeAndNotify(key, conn);
+                    return;
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("Error en conexión con " + conn.getPeerId() + ": " + e.getMessage());
+            closeAndNotify(key, conn);
+            return;
+        }
+
+        buf.compact();
+        // Volver al tamaño normal tras un frame grande
+        if (buf.position() == 0 && buf.capacity() > READ_BUFFER_SIZE)
+            conn.setReadBuffer(ByteBuffer.allocate(READ_BUFFER_SIZE));
+    }
+
+    // ── Escritura ────────────────────────────────────────────────────────
+
+    private void flush(SelectionKey key, TCPNetworkModule.PeerConnection conn) {
+        try {
+            if (conn.flushNio())
+                key.interestOps(SelectionKey.OP_READ);
+        } catch (IOException e) {
+            closeAndNotify(key, conn);
+        }
+    }
+
+    private void closeAndNotify(SelectionKey key, TCPNetworkModule.PeerConnection conn) {
+        if (key != null) key.cancel();
+        module.connectionLost(conn);
+    }
+}
@@ -0,0 +1,246 @@
+package com.p2p.network;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Cola de salida acotada de una PeerConnection.
+ *
+ * send() solo encola; un único escritor a la vez (hilo del pool en modo
+ * bloqueante, el NioEventLoop en modo NIO) saca lotes de hasta MAX_BATCH
+ * mensajes y los escribe con un solo flush.
+ *
+ * Política cuando la cola está llena (-Dp2p.outbound.policy):
+ *   DROP_HEARTBEATS → (por defecto) se descartan HEARTBEAT, el nuevo o uno
+ *                     encolado; si no hay ninguno se actúa como BLOCK
+ *   BLOCK           → el emisor espera hasta BLOCK_TIMEOUT_MS y luego desconecta
+ *   DISCONNECT      → se desconecta al peer inmediatamente
+ *
+ * Un hilo de E/S nunca espera: donde tocaría bloquear, se desconecta.
+ */
+public class OutboundQueue {
+
+    public enum BackpressurePolicy {
+        DROP_HEARTBEATS, BLOCK, DISCONNECT
+    }
+
+    public static final int CAPACITY = Integer.getInteger("p2p.outbound.capacity", 1024);
+    public static final int MAX_BATCH = 64;
+    public static final long BLOCK_TIMEOUT_MS = 10_000;
+    public static final BackpressurePolicy POLICY = parsePolicy(System.getProperty("p2p.outbound.policy"));
+
+    /** Resultado de offer(). */
+    public enum Offer {
+        /** Encolado; ya hay un escritor activo. */
+        QUEUED,
+        /** Encolado; el llamador debe arrancar el escritor. */
+        SCHEDULE,
+        /** Descartado (heartbeat con cola llena). */
+        DROPPED,
+        /** Cola saturada: hay que desconectar al peer. */
+        OVERFLOW
+    }
+
+    private final int capacity;
+    private final BackpressurePolicy policy;
+    private final ArrayDeque<Message> queue = new ArrayDeque<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notFull = lock.newCondition();
+
+    private boolean drainScheduled;
+    private boolean closed;
+    private int queuedHeartbeats;
+
+    // Métricas
+    private long enqueued;
+    private long written;
+    private long dropped;
+    private long batches;
+    private int highWaterMark;
+
+    public OutboundQueue() {
+        this(CAPACITY, POLICY);
+    }
+
+    public OutboundQueue(int capacity, BackpressurePolicy policy) {
+        this.capacity = Math.max(1, capacity);
+        this.policy = policy;
+    }
+
+    private static BackpressurePolicy parsePolicy(String value) {
+        if (value != null) {
+            try {
+                return BackpressurePolicy.valueOf(value.trim().toUpperCase());
+            } catch (IllegalArgumentException ignored) {
+                // valor desconocido: política por defecto
+            }
+        }
+        return BackpressurePolicy.DROP_HEARTBEATS;
+    }
+
+    /**
+     * Encola un mensaje aplicando la política de contrapresión.
+     * @param mayBlock false si el llamador es un hilo de E/S (no puede esperar)
+     */
+    public Offer offer(Message message, boolean mayBlock) {
+        lock.lock();
+        try {
+            if (closed)
+                return Offer.DROPPED;
+
+            if (queue.size() >= capacity) {
+                if (policy == BackpressurePolicy.DISCONNECT)
+                    return Offer.OVERFLOW;
+                if (policy == BackpressurePolicy.DROP_HEARTBEATS) {
+                    if (message.getType() == MessageType.HEARTBEAT) {
+                        dropped++;
+                        return Offer.DROPPED;
+                    }
+                    if (dropQueuedHeartbeat())
+                        return enqueue(message);
+                }
+                if (!mayBlock)
+                    return Offer.OVERFLOW;
+                if (!awaitSpace())
+                    return closed ? Offer.DROPPED : Offer.OVERFLOW;
+            }
+            return enqueue(message);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Requiere el lock tomado. */
+    private Offer enqueue(Message message) {
+        queue.addLast(message);
+        if (message.getType() == MessageType.HEARTBEAT)
+            queuedHeartbeats++;
+        enqueued++;
+        highWaterMark = Math.max(highWaterMark, queue.size());
+
+        if (drainScheduled)
+            return Offer.QUEUED;
+        drainScheduled = true;
+        return Offer.SCHEDULE;
+    }
+
+    private boolean awaitSpace() {
+        long nanos = TimeUnit.MILLISECONDS.toNanos(BLOCK_TIMEOUT_MS);
+        try {
+            while (queue.size() >= capacity && !closed) {
+                if (nanos <= 0)
+                    return false;
+                nanos = notFull.awaitNanos(nanos);
+            }
+            return !closed;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private boolean dropQueuedHeartbeat() {
+        if (queuedHeartbeats == 0)
+            return false;
+        Iterator<Message> it = queue.iterator();
+        while (it.hasNext()) {
+            if (it.next().getType() == MessageType.HEARTBEAT) {
+                it.remove();
+                queuedHeartbeats--;
+                dropped++;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Saca hasta MAX_BATCH mensajes para un solo flush. */
+    public List<Message> pollBatch() {
+        lock.lock();
+        try {
+            int n = Math.min(MAX_BATCH, queue.size());
+            List<Message> batch = new ArrayList<>(n);
+            for (int i = 0; i < n; i++) {
+                Message m = queue.pollFirst();
+                if (m.getType() == MessageType.HEARTBEAT)
+                    queuedHeartbeats--;
+                batch.add(m);
+            }
+            if (n > 0) {
+                written += n;
+                batches++;
+                notFull.signalAll();
+            }
+            return batch;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * El escritor termina solo si la cola quedó vacía; si entró algo
+     * mientras tanto devuelve false y el escritor debe seguir.
+     */
+    public boolean finishDrain() {
+        lock.lock();
+        try {
+            if (!queue.isEmpty())
+                return false;
+            drainScheduled = false;
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean isDrainScheduled() {
+        lock.lock();
+        try {
+            return drainScheduled;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Rechaza nuevos mensajes y despierta a los emisores bloqueados. */
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // ── Métricas ─────────────────────────────────────────────────────────
+
+    public int getDepth() {
+        lock.lock();
+        try {
+            return queue.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public Map<String, Object> getStats() {
+        lock.lock();
+        try {
+            Map<String, Object> stats = new HashMap<>();
+            stats.put("depth", queue.size());
+            stats.put("capacity", capacity);
+            stats.put("highWaterMark", highWaterMark);
+            stats.put("enqueued", enqueued);
+            stats.put("written", written);
+            stats.put("dropped", dropped);
+            stats.put("batches", batches);
+            stats.put("policy", policy.name());
+            return stats;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package com.p2p.network;
+
+/**
+ * Detector de fallos phi-accrual (Hayashibara et al.) para un peer.
+ *
+ * En vez de un timeout fijo devuelve phi = -log10(P(llegue un heartbeat
+ * tan tarde)), estimando la distribución de los silencios con una normal
+ * sobre los últimos WINDOW intervalos. phi = 8 significa que con un peer
+ * vivo un silencio así ocurriría 1 vez en 10^8.
+ *
+ * Cualquier frame prueba que el peer vive (touch) y reinicia el silencio.
+ * Solo aporta muestra el silencio que termina en un heartbeat y dura al
+ * menos minSampleMs: el peer sondea tras quedarse ocioso, así que ese
+ * hueco es el máximo esperable. Los sondeos de RTT en un enlace ocupado
+ * llegan tras pocos ms y no se cuentan, o el detector aprendería el ritmo
+ * del tráfico y daría por caído al peer en cuanto este parase.
+ *
+ * Antes de tener medidas se supone el intervalo nominal de heartbeat.
+ */
+public class PhiAccrualDetector {
+
+    private static final int WINDOW = 100;
+
+    private final long[] intervals = new long[WINDOW];
+    private final double minStdDevMs;
+    private final long minSampleMs;
+    private int count;
+    private int next;
+    private double sum;
+    private double sumSquares;
+    private long lastArrival = -1;
+
+    public PhiAccrualDetector(long expectedIntervalMs, double minStdDevMs, long minSampleMs) {
+        this.minStdDevMs = minStdDevMs;
+        this.minSampleMs = minSampleMs;
+        // Semilla: dos intervalos alrededor del nominal (desviación = nominal/4)
+        add(expectedIntervalMs - expectedIntervalMs / 4);
+        add(expectedIntervalMs + expectedIntervalMs / 4);
+    }
+
+    /** Registra la llegada de un heartbeat; muestrea el silencio previo si fue ocioso. */
+    public synchronized void heartbeat(long nowMs) {
+        if (lastArrival >= 0 && nowMs - lastArrival >= minSampleMs)
+            add(nowMs - lastArrival);
+        lastArrival = nowMs;
+    }
+
+    /** Registra un frame cualquiera: reinicia el silencio sin añadir intervalo. */
+    public synchronized void touch(long nowMs) {
+        lastArrival = nowMs;
+    }
+
+    /** Sospecha actual; 0 si aún no ha llegado ningún frame. */
+    public synchronized double phi(long nowMs) {
+        if (lastArrival < 0)
+            return 0.0;
+        double mean = sum / count;
+        double variance = Math.max(0, sumSquares / count - mean * mean);
+        double stdDev = Math.max(Math.sqrt(variance), minStdDevMs);
+
+        // Aproximación logística de la CDF normal (evita erf)
+        double y = (nowMs - lastArrival - mean) / stdDev;
+        double e = Math.exp(-y * (1.5976 + 0.070566 * y * y));
+        double pLater = nowMs - lastArrival > mean ? e / (1.0 + e) : 1.0 - 1.0 / (1.0 + e);
+        return -Math.log10(Math.max(pLater, Double.MIN_VALUE));
+    }
+
+    private void add(long interval) {
+        if (count == WINDOW) {
+            long old = intervals[next];
+            sum -= old;
+            sumSquares -= (double) old * old;
+        } else {
+            count++;
+        }
+        intervals[next] = interval;
+        next = (next + 1) % WINDOW;
+        sum += interval;
+        sumSquares += (double) interval * interval;
+    }
+}
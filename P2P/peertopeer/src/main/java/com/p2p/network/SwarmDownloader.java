@@ -0,0 +1,210 @@
+package com.p2p.network;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Descarga en enjambre desde todos los peers que tienen el archivo
+ * (NameServer.fileLocations).
+ *
+ *   1. Pide al dueño los hashes SHA-256 por bloque ("HASH:") de CHUNK_SIZE bytes.
+ *   2. Reserva el archivo completo en un temporal y lanza un trabajador por
+ *      peer; cada uno pide bloques pendientes por rango ("GET:f:off:len").
+ *   3. Cada bloque se verifica contra su hash antes de escribirse en su posición.
+ *      Un peer que entrega datos corruptos se descarta; uno que falla
+ *      MAX_FAILURES veces seguidas también, y sus bloques vuelven a la cola.
+ *   4. Al final (sin pendientes) los trabajadores libres duplican los bloques
+ *      que siguen en vuelo en peers lentos: gana el primero que termina.
+ *
+ * Si solo hay una fuente, el archivo cabe en un bloque o el dueño no entiende
+ * "HASH:" (versión anterior), se usa la descarga simple de FileTransferTCP.
+ */
+public class SwarmDownloader {
+
+    public static final int CHUNK_SIZE  = Integer.getInteger("p2p.swarm.chunk", 1024 * 1024);
+    public static final int MAX_SOURCES = 8;
+    private static final int  MAX_FAILURES = 2;
+    private static final long IDLE_WAIT_MS = 50;
+
+    private static final ExecutorService pool = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "swarm-xfer");
+        t.setDaemon(true);
+        return t;
+    });
+
+    /**
+     * Descarga filename a destDir usando al dueño y al resto de holders.
+     * El lastModified del resultado es siempre el del dueño (detección de colisión).
+     */
+    public static FileTransferTCP.DownloadResult download(String ownerPeerId, Collection<String> holders,
+                                                          String filename, String destDir)
+            throws IOException {
+        List<String> sources = new ArrayList<>();
+        sources.add(ownerPeerId);
+        if (holders != null) {
+            for (String peer : holders) {
+                if (sources.size() >= MAX_SOURCES) break;
+                if (!sources.contains(peer)) sources.add(peer);
+            }
+        }
+        if (sources.size() == 1)
+            return FileTransferTCP.downloadFile(ownerPeerId, filename, destDir);
+
+        FileTransferTCP.ChunkManifest manifest;
+        try {
+            manifest = FileTransferTCP.fetchManifest(ownerPeerId, filename, CHUNK_SIZE);
+        } catch (IOException e) {
+            System.out.println("⚠ Sin manifiesto de " + ownerPeerId + " (" + e.getMessage()
+                    + "), descarga simple");
+            return FileTransferTCP.downloadFile(ownerPeerId, filename, destDir);
+        }
+        if (manifest.getChunkCount() <= 1)
+            return FileTransferTCP.downloadFile(ownerPeerId, filename, destDir);
+
+        new File(destDir).mkdirs();
+        File tmp = FileTransferTCP.newPartialDownload(destDir);
+        try {
+            Swarm swarm = new Swarm(filename, manifest);
+            try (RandomAccessFile raf = new RandomAccessFile(tmp, "rw")) {
+                raf.setLength(manifest.size);
+                swarm.run(raf.getChannel(), sources);
+            }
+            File dest = new File(destDir, filename);
+            FileTransferTCP.moveIntoPlace(tmp, dest);
+            System.out.println("✓ Recibido en enjambre: " + filename + " (" + manifest.size
+                    + " bytes, " + manifest.getChunkCount() + " bloques) " + swarm.chunksPerPeer);
+            return new FileTransferTCP.DownloadResult(dest, manifest.lastModified);
+        } finally {
+            tmp.delete();
+        }
+    }
+
+    // ── Estado de una descarga ───────────────────────────────────────────
+
+    private static class Swarm {
+        private final String filename;
+        private final FileTransferTCP.ChunkManifest manifest;
+
+        private final Deque<Integer> pending = new ConcurrentLinkedDeque<>();
+        // bloque → nº de trabajadores descargándolo
+        private final ConcurrentHashMap<Integer, Integer> inFlight = new ConcurrentHashMap<>();
+        private final AtomicIntegerArray done;
+        private final AtomicInteger remaining;
+        private final AtomicInteger activeWorkers = new AtomicInteger();
+        private final CountDownLatch finished = new CountDownLatch(1);
+        private final Map<String, Integer> chunksPerPeer = new ConcurrentHashMap<>();
+
+        private FileChannel out;
+
+        Swarm(String filename, FileTransferTCP.ChunkManifest manifest) {
+            this.filename  = filename;
+            this.manifest  = manifest;
+            int chunks     = manifest.getChunkCount();
+            this.done      = new AtomicIntegerArray(chunks);
+            this.remaining = new AtomicInteger(chunks);
+            for (int i = 0; i < chunks; i++) pending.add(i);
+        }
+
+        void run(FileChannel out, List<String> sources) throws IOException {
+            this.out = out;
+            activeWorkers.set(sources.size());
+            for (String peer : sources)
+                pool.submit(() -> work(peer));
+            try {
+                finished.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Descarga interrumpida: " + filename);
+            }
+            if (remaining.get() > 0)
+                throw new IOException("Ningún peer pudo entregar " + remaining.get()
+                        + " bloques de " + filename);
+        }
+
+        private void work(String peer) {
+            byte[] buf = new byte[manifest.chunkSize];
+            int failures = 0;
+            try {
+                while (remaining.get() > 0) {
+                    Integer chunk = pending.poll();
+                    boolean duplicate = false;
+                    if (chunk == null) {
+                        chunk = pickSlowChunk();
+                        duplicate = true;
+                    }
+                    if (chunk == null) {
+                        if (inFlight.isEmpty() && pending.isEmpty()) break;
+                        Thread.sleep(IDLE_WAIT_MS);
+                        continue;
+                    }
+                    if (done.get(chunk) == 1) continue;
+
+                    inFlight.merge(chunk, 1, Integer::sum);
+                    try {
+                        if (!fetch(peer, chunk, buf)) {
+                            System.out.println("⚠ Bloque " + chunk + " de '" + filename
+                                    + "' corrupto desde " + peer + ", peer descartado");
+                            requeue(chunk, duplicate);
+                            return;
+                        }
+                        failures = 0;
+                    } catch (IOException e) {
+                        requeue(chunk, duplicate);
+                        if (++failures >= MAX_FAILURES) {
+                            System.out.println("⚠ Peer " + peer + " descartado para '" + filename
+                                    + "': " + e.getMessage());
+                            return;
+                        }
+                    } finally {
+                        inFlight.computeIfPresent(chunk, (k, n) -> n > 1 ? n - 1 : null);
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                if (activeWorkers.decrementAndGet() == 0) finished.countDown();
+            }
+        }
+
+        /** Descarga, verifica y escribe un bloque; false si el hash no coincide. */
+        private boolean fetch(String peer, int chunk, byte[] buf) throws IOException {
+            long offset = (long) chunk * manifest.chunkSize;
+            int  length = manifest.chunkLength(chunk);
+            int  n      = FileTransferTCP.readRange(peer, filename, offset, length, buf);
+            if (n != length) return false;
+
+            MessageDigest md = FileTransferTCP.sha256();
+            md.update(buf, 0, n);
+            if (!MessageDigest.isEqual(md.digest(), manifest.hashes[chunk])) return false;
+
+            if (!done.compareAndSet(chunk, 0, 1)) return true; // otro peer ganó la carrera
+            ByteBuffer data = ByteBuffer.wrap(buf, 0, n);
+            long pos = offset;
+            while (data.hasRemaining()) pos += out.write(data, pos);
+            chunksPerPeer.merge(peer, 1, Integer::sum);
+            if (remaining.decrementAndGet() == 0) finished.countDown();
+            return true;
+        }
+
+        /** Bloque en vuelo en un solo peer y aún sin terminar (para duplicarlo). */
+        private Integer pickSlowChunk() {
+            for (Map.Entry<Integer, Integer> e : inFlight.entrySet()) {
+                if (e.getValue() == 1 && done.get(e.getKey()) == 0) return e.getKey();
+            }
+            return null;
+        }
+
+        /** Devuelve el bloque a la cola (antes de quitarlo de inFlight: nunca se pierde). */
+        private void requeue(int chunk, boolean duplicate) {
+            if (!duplicate && done.get(chunk) == 0) pending.addFirst(chunk);
+        }
+    }
+}
@@ -1,26 +1,91 @@
 package com.p2p.network;
 
+import com.p2p.network.OutboundQueue.Offer;
+import com.p2p.utils.HashedWheelTimer;
 import com.p2p.utils.ThreadManager;
 
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.IntSupplier;
 
 public class TCPNetworkModule {
     private static final int PORT = 8888;
     private static final int CONNECTION_TIMEOUT = 10000;
 
+    /**
+     * Modo de transporte:
+     *   blocking (por defecto) → un hilo por peer bloqueado en read()
+     *   nio (-Dp2p.transport=nio) → pocos hilos de E/S con Selector;
+     *   los peers que negocian el codec java siguen con su hilo bloqueante.
+     */
+    private static final boolean NIO_MODE = "nio".equalsIgnoreCase(System.getProperty("p2p.transport"));
+    private static final int IO_THREADS = Integer.getInteger("p2p.nio.threads", 2);
+    private static final int HANDSHAKE_THREADS = 4;
+
+    /**
+     * Detector de fallos: phi ≥ SUSPECT_PHI marca al peer como sospechoso
+     * (se evita al elegir dueños); phi ≥ DEAD_PHI lo da por caído y se
+     * desconecta sin esperar a que falle el socket (TCP medio abierto).
+     * Con heartbeats cada 5 s equivalen a unos 10 s y 12 s de silencio.
+     *
+     * Solo se envía HEARTBEAT a un peer al que no le hemos mandado nada en
+     * HEARTBEAT_INTERVAL_MS (el tráfico normal ya prueba que seguimos vivos),
+     * y como mucho cada RTT_PROBE_MS aunque haya tráfico, para refrescar RTT y carga.
+     */
+    private static final long HEARTBEAT_INTERVAL_MS = 5000;
+    private static final long HEARTBEAT_TICK_MS = 1000;
+    private static final long RTT_PROBE_MS = 30_000;
+    private static final double SUSPECT_PHI = doubleProperty("p2p.fd.suspectPhi", 8.0);
+    private static final double DEAD_PHI = doubleProperty("p2p.fd.deadPhi", 16.0);
+    private static final double MIN_STD_DEV_MS = 1000.0;
+
+    /** Espera máxima de close() para enviar lo pendiente antes de cerrar el socket. */
+    private static final long CLOSE_FLUSH_MS = 2000;
+
+    /**
+     * Arranque por multicast en la LAN (-Dp2p.multicast=true): al iniciar se
+     * anuncia "P2P-HELLO <nodeId>" al grupo y cada nodo contesta por unicast
+     * "P2P-HERE <nodeId>". Solo se conecta a quien responde mientras se
+     * tengan menos de MULTICAST_MAX_PEERS vecinos; el resto lo hace el gossip.
+     */
+    private static final boolean MULTICAST = Boolean.getBoolean("p2p.multicast");
+    private static final String MULTICAST_GROUP = System.getProperty("p2p.multicast.group", "239.255.88.88");
+    private static final int MULTICAST_PORT = 8890;
+    private static final int MULTICAST_MAX_PEERS = 3;
+
+    /** RTT supuesto para un peer sin medidas todavía (ms). */
+    private static final double DEFAULT_RTT_MS = 100.0;
+
     private final ThreadManager threadManager;
     private final String nodeId;
     private final Map<String, PeerConnection> peers;
     private final List<MessageListener> listeners;
     private final Map<String, ConnectionState> connectionStates;
+    private final Set<String> suspects = ConcurrentHashMap.newKeySet();
+    private final BroadcastOverlay overlay;
+    private volatile IntSupplier clusterSize = () -> getPeerCount();
 
     private ServerSocket serverSocket;
+    private MulticastSocket multicastSocket;
     private boolean running;
 
+    // Solo en modo NIO
+    private ServerSocketChannel serverChannel;
+    private NioEventLoop[] ioLoops;
+    private ExecutorService handshakePool;
+    private final AtomicInteger nextLoop = new AtomicInteger();
+
     public enum ConnectionState {
         CLOSED, LISTEN, SYN_SENT, SYN_RECEIVED, ESTABLISHED,
         FIN_WAIT_1, FIN_WAIT_2, TIME_WAIT, CLOSE_WAIT, LAST_ACK
@@ -43,6 +108,7 @@ public class TCPNetworkModule {
         this.listeners = new ArrayList<>();
         this.connectionStates = new ConcurrentHashMap<>();
         this.running = true;
+        this.overlay = new BroadcastOverlay(this, threadManager.getTimer());
     }
 
     private String generateNodeId() {
@@ -78,18 +144,72 @@ public class TCPNetworkModule {
     }
 
     public void start() {
+        if (NIO_MODE) {
+            startNio();
+            return;
+        }
         try {
             serverSocket = new ServerSocket(PORT);
             serverSocket.setSoTimeout(1000);
             threadManager.executeTask(this::acceptConnections);
             System.out.println("✓ Modo servidor activo: Escuchando en puerto " + PORT);
-            threadManager.getScheduler().scheduleAtFixedRate(
-                    this::sendHeartbeats, 5, 5, TimeUnit.SECONDS);
+            startHeartbeats();
+        } catch (IOException e) {
+            System.err.println("⚠ Error al iniciar servidor en puerto " + PORT + ": " + e.getMessage());
+        }
+    }
+
+    private void startNio() {
+        try {
+            NioEventLoop[] loops = ioLoops();
+            handshakePool = Executors.newFixedThreadPool(HANDSHAKE_THREADS, r -> {
+                Thread t = new Thread(r, "p2p-handshake");
+                t.setDaemon(true);
+                return t;
+            });
+
+            serverChannel = ServerSocketChannel.open();
+            serverChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+            serverChannel.bind(new InetSocketAddress(PORT));
+            // El handshake es bloqueante y corto: se hace fuera del loop de E/S
+            loops[0].registerAcceptor(serverChannel,
+                    channel -> handshakePool.submit(() -> handleNewConnection(channel.socket())));
+
+            System.out.println("✓ Modo servidor activo (NIO, " + loops.length
+                    + " hilos de E/S): Escuchando en puerto " + PORT);
+            startHeartbeats();
         } catch (IOException e) {
             System.err.println("⚠ Error al iniciar servidor en puerto " + PORT + ": " + e.getMessage());
         }
     }
 
+    private void startHeartbeats() {
+        threadManager.getScheduler().scheduleAtFixedRate(this::sendHeartbeats,
+                HEARTBEAT_TICK_MS, HEARTBEAT_TICK_MS, TimeUnit.MILLISECONDS);
+        threadManager.getScheduler().scheduleAtFixedRate(this::checkFailures, 1, 1, TimeUnit.SECONDS);
+    }
+
+    private static double doubleProperty(String name, double def) {
+        try {
+            return Double.parseDouble(System.getProperty(name, String.valueOf(def)));
+        } catch (NumberFormatException e) {
+            return def;
+        }
+    }
+
+    /** Crea los loops de E/S la primera vez (también al conectar como cliente). */
+    private synchronized NioEventLoop[] ioLoops() throws IOException {
+        if (ioLoops == null) {
+            NioEventLoop[] loops = new NioEventLoop[Math.max(1, IO_THREADS)];
+            for (int i = 0; i < loops.length; i++) {
+                loops[i] = new NioEventLoop("p2p-io-" + i, this);
+                loops[i].start();
+            }
+            ioLoops = loops;
+        }
+        return ioLoops;
+    }
+
     private void acceptConnections() {
         while (running) {
             try {
@@ -114,20 +234,25 @@ public class TCPNetworkModule {
                 String peerId = synMessage.getSenderId();
                 connectionStates.put(peerId, ConnectionState.SYN_RECEIVED);
 
+                // Elegir codec entre los que ofrece el cliente (peers antiguos → java)
+                String codecName = MessageCodec.negotiate(synMessage.getPayload("codecs"));
+
                 ObjectOutputStream oos = new ObjectOutputStream(socket.getOutputStream());
                 Message synAck = new Message(MessageType.TCP_SYN_ACK, nodeId);
+                synAck.addPayload("codec", codecName);
                 oos.writeObject(synAck);
                 oos.flush();
 
                 Message ackMessage = (Message) ois.readObject();
                 if (ackMessage.getType() == MessageType.TCP_ACK) {
                     connectionStates.put(peerId, ConnectionState.ESTABLISHED);
-                    PeerConnection conn = new PeerConnection(peerId, socket, ois, oos);
+                    PeerConnection conn = openConnection(peerId, socket, codecName, ois, oos);
                     peers.put(peerId, conn);
-                    System.out.println("✓ Nueva conexión establecida con peer: " + peerId);
+                    System.out.println("✓ Nueva conexión establecida con peer: " + peerId
+                            + " [codec: " + codecName + "]");
                     for (MessageListener listener : listeners)
                         listener.onPeerConnected(peerId);
-                    threadManager.executeTask(() -> listenToPeer(conn));
+                    startReading(conn);
                 }
             }
         } catch (IOException | ClassNotFoundException e) {
@@ -151,11 +276,19 @@ public class TCPNetworkModule {
         System.out.println("→ Modo cliente: Conectando a peer " + host);
         try {
             connectionStates.put(host, ConnectionState.SYN_SENT);
-            Socket socket = new Socket(host, PORT);
+            Socket socket;
+            if (NIO_MODE) {
+                // Canal bloqueante durante el handshake; se pasa a no bloqueante después
+                socket = SocketChannel.open().socket();
+                socket.connect(new InetSocketAddress(host, PORT), CONNECTION_TIMEOUT);
+            } else {
+                socket = new Socket(host, PORT);
+            }
             socket.setSoTimeout(CONNECTION_TIMEOUT);
 
             ObjectOutputStream oos = new ObjectOutputStream(socket.getOutputStream());
             Message syn = new Message(MessageType.TCP_SYN, nodeId);
+            syn.addPayload("codecs", MessageCodec.offered());
             oos.writeObject(syn);
             oos.flush();
 
@@ -168,13 +301,18 @@ public class TCPNetworkModule {
                 oos.writeObject(ack);
                 oos.flush();
 
+                // Un peer sin negociación no devuelve "codec": se mantiene java
+                Object chosen = synAck.getPayload("codec");
+                String codecName = chosen instanceof String ? (String) chosen : MessageCodec.JAVA;
+
                 String peerId = synAck.getSenderId();
-                PeerConnection conn = new PeerConnection(peerId, socket, ois, oos);
+                PeerConnection conn = openConnection(peerId, socket, codecName, ois, oos);
                 peers.put(peerId, conn);
-                System.out.println("✓ Conectado exitosamente a peer: " + peerId);
+                System.out.println("✓ Conectado exitosamente a peer: " + peerId
+                        + " [codec: " + codecName + "]");
                 for (MessageListener listener : listeners)
                     listener.onPeerConnected(peerId);
-                threadManager.executeTask(() -> listenToPeer(conn));
+                startReading(conn);
             }
         } catch (IOException | ClassNotFoundException e) {
             System.err.println("⚠ No se pudo conectar a " + host + ": " + e.getMessage());
@@ -182,39 +320,105 @@ public class TCPNetworkModule {
         }
     }
 
+    /**
+     * Crea la PeerConnection tras el handshake. En modo NIO, si se negoció el
+     * codec binario, el canal pasa a no bloqueante y lo atiende un NioEventLoop.
+     */
+    private PeerConnection openConnection(String peerId, Socket socket, String codecName,
+            ObjectInputStream ois, ObjectOutputStream oos) throws IOException {
+        SocketChannel channel = socket.getChannel();
+        if (NIO_MODE && channel != null && MessageCodec.isBinary(codecName)) {
+            channel.configureBlocking(false);
+            NioEventLoop[] loops = ioLoops();
+            NioEventLoop loop = loops[Math.floorMod(nextLoop.getAndIncrement(), loops.length)];
+            return new PeerConnection(peerId, channel, loop, MessageCodec.BINARY_V2.equals(codecName), this);
+        }
+        return new PeerConnection(peerId, socket, MessageCodec.open(codecName, socket, ois, oos), this);
+    }
+
+    private void startReading(PeerConnection conn) {
+        if (conn.isNio())
+            conn.getLoop().register(conn);
+        else
+            threadManager.executeTask(() -> listenToPeer(conn));
+    }
+
     private void listenToPeer(PeerConnection conn) {
         try {
             while (running && conn.isConnected()) {
-                Message message = (Message) conn.getOis().readObject();
-                conn.updateLastSeen();
-                processMessage(message, conn);
-
-                switch (message.getType()) {
-                    case TCP_FIN:
-                        handleFin(conn, message);
-                        break;
-                    case TCP_FIN_ACK:
-                        handleFinAck(conn, message);
-                        break;
-                    case PEER_LEAVE:
-                        handlePeerLeave(conn.getPeerId());
-                        return;
-                }
+                Message message = conn.getCodec().read();
+                if (!dispatch(message, conn))
+                    return;
             }
         } catch (EOFException e) {
             System.out.println("Peer cerró conexión: " + conn.getPeerId());
-        } catch (IOException | ClassNotFoundException e) {
+        } catch (IOException e) {
             if (running)
                 System.out.println("Error en conexión con " + conn.getPeerId());
         } finally {
-            // Limpiar y notificar desconexión
-            String peerId = conn.getPeerId();
-            conn.close();
-            peers.remove(peerId);
-            connectionStates.remove(peerId);
-            for (MessageListener listener : listeners)
-                listener.onPeerDisconnected(peerId);
+            connectionLost(conn);
+        }
+    }
+
+    /**
+     * Entrega un mensaje recibido a los listeners y procesa el control de
+     * conexión. Devuelve false si la conexión debe cerrarse (PEER_LEAVE).
+     */
+    boolean dispatch(Message message, PeerConnection conn) {
+        conn.updateLastSeen();
+        // Cualquier frame prueba que el peer vive; solo sus pings tras un silencio
+        // (no los ecos, que siguen nuestro ritmo) aportan muestra al detector
+        if (message.getType() == MessageType.HEARTBEAT && message.getPayload("ping") != null)
+            conn.failureDetector.heartbeat(conn.getLastSeen());
+        else
+            conn.failureDetector.touch(conn.getLastSeen());
+        if (suspects.remove(conn.getPeerId()))
+            System.out.println("✓ Peer " + conn.getPeerId() + " vuelve a responder");
+
+        // Difusión en árbol: control, duplicados y respuestas en tránsito no llegan a los listeners
+        switch (message.getType()) {
+            case BCAST_IHAVE:
+            case BCAST_PRUNE:
+            case BCAST_GRAFT:
+                overlay.onControl(message, conn);
+                return true;
+            default:
+                break;
+        }
+        if (message.getPayload(BroadcastOverlay.BCAST_KEY) != null && !overlay.receive(message, conn))
+            return true;
+        if (message.getPayload(BroadcastOverlay.REPLY_KEY) != null && overlay.routeReply(message))
+            return true;
+        processMessage(message, conn);
+
+        switch (message.getType()) {
+            case TCP_FIN:
+                handleFin(conn, message);
+                break;
+            case TCP_FIN_ACK:
+                handleFinAck(conn, message);
+                break;
+            case PEER_LEAVE:
+                handlePeerLeave(conn.getPeerId());
+                return false;
+            case HEARTBEAT:
+                handleHeartbeat(conn, message);
+                break;
         }
+        return true;
+    }
+
+    /** Limpiar y notificar desconexión. */
+    void connectionLost(PeerConnection conn) {
+        if (!conn.markLost())
+            return; // ya notificada (p. ej. detector de fallos y luego el lector)
+        String peerId = conn.getPeerId();
+        suspects.remove(peerId);
+        conn.close();
+        peers.remove(peerId);
+        connectionStates.remove(peerId);
+        for (MessageListener listener : listeners)
+            listener.onPeerDisconnected(peerId);
     }
 
     private void processMessage(Message message, PeerConnection conn) {
@@ -233,12 +437,35 @@ public class TCPNetworkModule {
     private void handleFinAck(PeerConnection conn, Message finAckMessage) {
         String peerId = conn.getPeerId();
         connectionStates.put(peerId, ConnectionState.TIME_WAIT);
-        threadManager.getScheduler().schedule(() -> {
+        threadManager.getTimer().schedule(() -> {
             connectionStates.remove(peerId);
             peers.remove(peerId);
         }, 2, TimeUnit.SECONDS);
     }
 
+    /**
+     * Un heartbeat con "ping" se devuelve como eco; al llegar el eco se mide
+     * el RTT. Ambos traen "load" = transferencias que sirve el emisor.
+     */
+    private void handleHeartbeat(PeerConnection conn, Message message) {
+        Object load = message.getPayload("load");
+        if (load instanceof Number)
+            conn.remoteLoad = ((Number) load).intValue();
+
+        Object ping = message.getPayload("ping");
+        Object echo = message.getPayload("echo");
+        if (ping instanceof Number) {
+            // El eco cuenta como tráfico: el peer no necesita mandarnos su propio heartbeat
+            conn.lastPingAt = System.currentTimeMillis();
+            Message reply = new Message(MessageType.HEARTBEAT, nodeId);
+            reply.addPayload("echo", ping);
+            reply.addPayload("load", FileTransferTCP.getActiveTransfers());
+            conn.send(reply);
+        } else if (echo instanceof Number) {
+            conn.recordRtt((System.nanoTime() - ((Number) echo).longValue()) / 1_000_000.0);
+        }
+    }
+
     private void handlePeerLeave(String peerId) {
         peers.remove(peerId);
         connectionStates.remove(peerId);
@@ -249,8 +476,8 @@ public class TCPNetworkModule {
 
     /**
      * Envía un mensaje a un peer de forma thread-safe.
-     * Sincronizado sobre la conexión para evitar que múltiples hilos
-     * (heartbeat, listener, descarga) corrompan el ObjectOutputStream.
+     * Solo encola en la OutboundQueue de la conexión; un único escritor
+     * por conexión evita que múltiples hilos corrompan el stream.
      */
     public void sendMessage(Message message, String targetPeerId) {
         PeerConnection conn = peers.get(targetPeerId);
@@ -259,6 +486,7 @@ public class TCPNetworkModule {
         }
     }
 
+    /** Envía message a cada vecino directo (no se reenvía más allá). */
     public void broadcast(Message message) {
         for (PeerConnection conn : peers.values()) {
             if (conn.isConnected())
@@ -266,12 +494,170 @@ public class TCPNetworkModule {
         }
     }
 
+    /**
+     * Difunde message a toda la red por el árbol de BroadcastOverlay: cada
+     * nodo lo entrega una vez y lo reenvía solo a sus ramas, así que llega
+     * también a quien no es vecino nuestro.
+     */
+    public void disseminate(Message message) {
+        overlay.broadcast(message);
+    }
+
+    /** Contesta a un mensaje difundido; la respuesta vuelve por el camino inverso. */
+    public void replyTo(Message original, Message reply, PeerConnection source) {
+        overlay.reply(original, reply, source);
+    }
+
+    public Map<String, Object> getBroadcastStats() {
+        return overlay.getStats();
+    }
+
+    /** Estimación del tamaño de la red (vecinos, o la membresía gossip si la hay). */
+    public int getClusterSize() {
+        return clusterSize.getAsInt();
+    }
+
+    public void setClusterSizeEstimate(IntSupplier estimate) {
+        this.clusterSize = estimate;
+    }
+
+    /**
+     * HEARTBEAT solo a los peers ociosos (o con la medida de RTT caducada).
+     * Si ambos extremos están ociosos sondea solo el de menor nodeId: el
+     * otro ya le prueba que vive con los ecos. Si esos pings dejan de
+     * llegar, el de mayor nodeId vuelve a sondear por su cuenta.
+     */
     private void sendHeartbeats() {
-        broadcast(new Message(MessageType.HEARTBEAT, nodeId));
+        long now = System.currentTimeMillis();
+        for (PeerConnection conn : peers.values()) {
+            boolean pinged = now - conn.lastPingAt < HEARTBEAT_INTERVAL_MS
+                    && nodeId.compareTo(conn.getPeerId()) > 0;
+            boolean idle = !pinged && now - conn.lastSentAt >= HEARTBEAT_INTERVAL_MS - HEARTBEAT_TICK_MS;
+            if (!conn.isConnected() || !(idle || now - conn.lastProbeAt >= RTT_PROBE_MS))
+                continue;
+            Message heartbeat = new Message(MessageType.HEARTBEAT, nodeId);
+            heartbeat.addPayload("ping", System.nanoTime());
+            heartbeat.addPayload("load", FileTransferTCP.getActiveTransfers());
+            conn.lastProbeAt = now;
+            conn.send(heartbeat);
+        }
+    }
+
+    /**
+     * Evalúa phi para cada peer (el silencio cuenta desde su último frame).
+     * Cualquier mensaje reciente basta para considerarlo vivo: un enlace
+     * saturado puede descartar heartbeats de su cola de salida.
+     */
+    private void checkFailures() {
+        long now = System.currentTimeMillis();
+        for (PeerConnection conn : peers.values()) {
+            String peerId = conn.getPeerId();
+            if (now - conn.getLastSeen() < HEARTBEAT_INTERVAL_MS) {
+                suspects.remove(peerId);
+                continue;
+            }
+            double phi = conn.failureDetector.phi(now);
+            if (phi >= DEAD_PHI) {
+                System.out.println("⚠ Peer " + peerId + " sin heartbeats (phi=" + String.format("%.1f", phi)
+                        + "), se da por caído");
+                // Nunca en el hilo del scheduler: cerrar puede esperar al escritor
+                // atascado y pararía heartbeats, peticiones y sincronización
+                if (conn.isNio())
+                    conn.getLoop().execute(() -> connectionLost(conn));
+                else
+                    threadManager.executeTask(() -> connectionLost(conn));
+            } else if (phi >= SUSPECT_PHI) {
+                if (suspects.add(peerId))
+                    System.out.println("⚠ Peer " + peerId + " sospechoso (phi=" + String.format("%.1f", phi) + ")");
+            } else {
+                suspects.remove(peerId);
+            }
+        }
+    }
+
+    /** true si el detector de fallos sospecha de peerId (aún conectado). */
+    public boolean isSuspect(String peerId) {
+        return suspects.contains(peerId);
+    }
+
+    /**
+     * Coste estimado de descargar de peerId: RTT suavizado × (1 + transferencias
+     * que está sirviendo). Sin medidas se supone DEFAULT_RTT_MS; los
+     * sospechosos van detrás de los sanos y los no conectados, al final.
+     */
+    public double scorePeer(String peerId) {
+        PeerConnection conn = peers.get(peerId);
+        if (conn == null)
+            return Double.MAX_VALUE;
+        if (suspects.contains(peerId))
+            return Double.MAX_VALUE / 2;
+        double rtt = conn.getRttMs() < 0 ? DEFAULT_RTT_MS : conn.getRttMs();
+        return rtt * (1 + conn.getRemoteLoad());
+    }
+
+    /** candidates ordenados de mejor a peor según scorePeer (orden estable en empates). */
+    public List<String> rankPeers(Collection<String> candidates) {
+        List<String> ranked = new ArrayList<>(candidates);
+        Map<String, Double> scores = new HashMap<>();
+        for (String peerId : ranked)
+            scores.put(peerId, scorePeer(peerId));
+        ranked.sort(Comparator.comparingDouble(scores::get));
+        return ranked;
     }
 
     public void discoverLocalPeers() {
+        if (!MULTICAST)
+            return;
         System.out.println("🔍 Descubriendo peers en red local...");
+        try {
+            InetSocketAddress group = new InetSocketAddress(InetAddress.getByName(MULTICAST_GROUP), MULTICAST_PORT);
+            MulticastSocket socket = new MulticastSocket(MULTICAST_PORT);
+            socket.joinGroup(group, null);
+            socket.setSoTimeout(1000);
+            multicastSocket = socket;
+            threadManager.executeTask(() -> listenBeacons(socket));
+            // Se repite mientras sigamos aislados (p. ej. arrancamos los primeros)
+            threadManager.getScheduler().scheduleWithFixedDelay(() -> {
+                if (running && peers.isEmpty())
+                    sendBeacon(socket, "P2P-HELLO", group);
+            }, 0, 30, TimeUnit.SECONDS);
+        } catch (IOException e) {
+            System.err.println("⚠ Descubrimiento multicast no disponible: " + e.getMessage());
+        }
+    }
+
+    private void listenBeacons(MulticastSocket socket) {
+        byte[] buf = new byte[256];
+        while (running && !socket.isClosed()) {
+            DatagramPacket packet = new DatagramPacket(buf, buf.length);
+            try {
+                socket.receive(packet);
+            } catch (SocketTimeoutException e) {
+                continue;
+            } catch (IOException e) {
+                break;
+            }
+            String[] beacon = new String(packet.getData(), 0, packet.getLength(),
+                    java.nio.charset.StandardCharsets.UTF_8).split(" ");
+            if (beacon.length != 2 || beacon[1].equals(nodeId))
+                continue;
+            if (beacon[0].equals("P2P-HELLO"))
+                sendBeacon(socket, "P2P-HERE", packet.getSocketAddress());
+            else if (!beacon[0].equals("P2P-HERE"))
+                continue;
+            String host = packet.getAddress().getHostAddress();
+            if (peers.size() < MULTICAST_MAX_PEERS && !isConnectedTo(beacon[1]))
+                threadManager.executeTask(() -> connectToPeer(host));
+        }
+    }
+
+    private void sendBeacon(MulticastSocket socket, String kind, SocketAddress target) {
+        byte[] data = (kind + " " + nodeId).getBytes(java.nio.charset.StandardCharsets.UTF_8);
+        try {
+            socket.send(new DatagramPacket(data, data.length, target));
+        } catch (IOException e) {
+            System.err.println("⚠ No se pudo enviar beacon " + kind + ": " + e.getMessage());
+        }
     }
 
     public void closeConnection(PeerConnection conn) {
@@ -294,12 +680,21 @@ public class TCPNetworkModule {
             conn.close();
         }
         peers.clear();
+        if (multicastSocket != null)
+            multicastSocket.close();
         try {
             if (serverSocket != null)
                 serverSocket.close();
+            if (serverChannel != null)
+                serverChannel.close();
         } catch (IOException e) {
             e.printStackTrace();
         }
+        if (ioLoops != null)
+            for (NioEventLoop loop : ioLoops)
+                loop.shutdown();
+        if (handshakePool != null)
+            handshakePool.shutdownNow();
     }
 
     public void addListener(MessageListener listener) {
@@ -326,25 +721,85 @@ public class TCPNetworkModule {
         return peers.size();
     }
 
+    /** Métricas de la cola de salida de cada peer (profundidad, descartes, lotes...). */
+    public Map<String, Map<String, Object>> getOutboundStats() {
+        Map<String, Map<String, Object>> stats = new HashMap<>();
+        peers.forEach((peerId, conn) -> stats.put(peerId, conn.getOutboundQueue().getStats()));
+        return stats;
+    }
+
+    /** RTT suavizado y carga anunciada de cada peer. */
+    public Map<String, Map<String, Object>> getLinkStats() {
+        Map<String, Map<String, Object>> stats = new HashMap<>();
+        peers.forEach((peerId, conn) -> {
+            Map<String, Object> link = new HashMap<>();
+            link.put("rttMs", conn.getRttMs());
+            link.put("load", conn.getRemoteLoad());
+            link.put("score", scorePeer(peerId));
+            link.put("phi", conn.failureDetector.phi(System.currentTimeMillis()));
+            link.put("suspect", suspects.contains(peerId));
+            stats.put(peerId, link);
+        });
+        return stats;
+    }
+
     // ─────────────────────────────────────────────────────────────────────
     public static class PeerConnection {
         private final String peerId;
         private final Socket socket;
-        private final ObjectInputStream ois;
-        private final ObjectOutputStream oos;
-        private long lastSeen;
+        private final MessageCodec codec;
+        private final TCPNetworkModule owner;
+        private final OutboundQueue outbound;
+        private final ReentrantLock writeLock = new ReentrantLock();
+        private volatile long lastSeen;
+
+        // Calidad del enlace: RTT de los ecos de heartbeat (-1 = sin medir) y carga del peer
+        private volatile double rttMs = -1;
+        private volatile int remoteLoad;
 
-        public PeerConnection(String peerId, Socket socket,
-                ObjectInputStream ois, ObjectOutputStream oos) {
+        // Detector de fallos alimentado por los heartbeats del peer
+        private final PhiAccrualDetector failureDetector =
+                new PhiAccrualDetector(HEARTBEAT_INTERVAL_MS, MIN_STD_DEV_MS, HEARTBEAT_INTERVAL_MS / 2);
+        private final AtomicBoolean lost = new AtomicBoolean();
+
+        // Último mensaje encolado hacia el peer, último sondeo nuestro y último ping suyo
+        private volatile long lastSentAt;
+        private volatile long lastProbeAt;
+        private volatile long lastPingAt;
+
+        // Solo en modo NIO: el loop dueño del canal y sus buffers
+        private final SocketChannel channel;
+        private final NioEventLoop loop;
+        private ByteBuffer readBuffer;
+        private ByteBuffer writeBuffer;
+        private volatile boolean closing;
+
+        public PeerConnection(String peerId, Socket socket, MessageCodec codec, TCPNetworkModule owner) {
             this.peerId = peerId;
             this.socket = socket;
-            this.ois = ois;
-            this.oos = oos;
+            this.codec = codec;
+            this.owner = owner;
+            this.outbound = new OutboundQueue();
+            this.lastSeen = System.currentTimeMillis();
+            this.channel = null;
+            this.loop = null;
+        }
+
+        PeerConnection(String peerId, SocketChannel channel, NioEventLoop loop, boolean compactHeartbeats,
+                TCPNetworkModule owner) {
+            this.peerId = peerId;
+            this.socket = channel.socket();
+            this.codec = new BinaryMessageCodec(null, null, compactHeartbeats);
+            this.owner = owner;
+            this.outbound = new OutboundQueue();
             this.lastSeen = System.currentTimeMillis();
+            this.channel = channel;
+            this.loop = loop;
+            this.readBuffer = ByteBuffer.allocate(NioEventLoop.READ_BUFFER_SIZE);
         }
 
         public boolean isConnected() {
-            return socket != null && socket.isConnected() && !socket.isClosed();
+            return !closing && socket != null && socket.isConnected() && !socket.isClosed();
         }
 
         public void updateLastSeen() {
@@ -352,29 +807,168 @@ public class TCPNetworkModule {
         }
 
         /**
-         * Thread-safe: sincronizado para que solo un hilo a la vez
-         * escriba en el ObjectOutputStream. Sin esto, múltiples hilos
-         * (heartbeat, FILE_REQUEST, PEER_ANNOUNCE) corrompen el stream
-         * y el peer se desconecta.
+         * No bloquea al llamador (salvo política BLOCK con la cola llena):
+         * el mensaje se encola y lo escribe el escritor de la conexión, así un
+         * peer lento no frena broadcast, heartbeats ni los handlers del NameServer.
          */
-        public synchronized void send(Message message) {
+        public void send(Message message) {
             if (!isConnected())
                 return;
+            lastSentAt = System.currentTimeMillis();
+            Offer result = outbound.offer(message, !NioEventLoop.isIoThread());
+            if (result == Offer.OVERFLOW && isNio() && loop.inLoop() && flushInline())
+                result = outbound.offer(message, false);
+            switch (result) {
+                case SCHEDULE:
+                    if (isNio())
+                        loop.requestWrite(this);
+                    else
+                        owner.getThreadManager().executeTask(this::drain);
+                    break;
+                case OVERFLOW:
+                    overflow();
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        /**
+         * Escritor del modo bloqueante: vacía la cola por lotes con un solo
+         * flush por lote. Toma writeLock para que el cierre no intercale
+         * mensajes (p. ej. el TCP_FIN) en mitad de un lote.
+         */
+        private void drain() {
+            while (true) {
+                writeLock.lock();
+                try {
+                    List<Message> batch = outbound.pollBatch();
+                    if (batch.isEmpty()) {
+                        if (outbound.finishDrain())
+                            return;
+                        continue;
+                    }
+                    writeBatch(batch);
+                } catch (IOException e) {
+                    // No lanzar; el caller (listenToPeer) detectará el fallo en el siguiente read
+                    outbound.close();
+                    return;
+                } finally {
+                    writeLock.unlock();
+                }
+            }
+        }
+
+        private void writeBatch(List<Message> batch) throws IOException {
+            for (Message message : batch) {
+                try {
+                    codec.write(message);
+                } catch (NotSerializableException e) {
+                    System.err.println("⚠ Mensaje " + message.getType() + " no serializable: " + e.getMessage());
+                }
+            }
+            codec.flush();
+        }
+
+        /**
+         * Escritor del modo NIO (hilo del loop): codifica lotes en un único
+         * buffer y lo escribe. Devuelve true cuando la cola quedó vacía.
+         */
+        boolean flushNio() throws IOException {
+            while (true) {
+                if (writeBuffer != null) {
+                    channel.write(writeBuffer);
+                    if (writeBuffer.hasRemaining())
+                        return false; // buffer del socket lleno: seguir con OP_WRITE
+                    writeBuffer = null;
+                }
+                List<Message> batch = outbound.pollBatch();
+                if (batch.isEmpty()) {
+                    if (outbound.finishDrain())
+                        return true;
+                    continue;
+                }
+                writeBuffer = getBinaryCodec().encodeFrames(batch);
+            }
+        }
+
+        /**
+         * Desde el propio loop (p. ej. respuestas a una ráfaga de consultas) se
+         * puede vaciar la cola sin esperar al siguiente OP_WRITE.
+         */
+        private boolean flushInline() {
             try {
-                oos.writeObject(message);
-                oos.flush();
-                oos.reset(); // Evitar que ObjectOutputStream cachée referencias antiguas
+                flushNio();
+                return true;
             } catch (IOException e) {
-                // No lanzar; el caller (listenToPeer) detectará el fallo en el siguiente read
+                return false;
             }
         }
 
+        private void overflow() {
+            System.err.println("⚠ Cola de salida saturada para " + peerId + " ("
+                    + outbound.getDepth() + " mensajes): desconectando");
+            if (isNio())
+                loop.execute(() -> owner.connectionLost(this));
+            else
+                close(); // el hilo lector detecta el cierre y limpia
+        }
+
         public void close() {
+            closing = true;
+            if (isNio()) {
+                // Cerrar en el hilo del loop tras intentar enviar lo pendiente (p. ej. TCP_FIN)
+                Runnable doClose = () -> {
+                    outbound.close();
+                    try {
+                        flushNio();
+                    } catch (IOException ignored) {
+                    }
+                    closeSocket();
+                };
+                if (loop.inLoop())
+                    doClose.run();
+                else
+                    loop.execute(doClose);
+                return;
+            }
+            outbound.close();
+            if (codec != null && tryLockForClose()) {
+                // Vaciar lo pendiente antes de cerrar, pero sin quedarse colgado
+                // si el peer dejó de leer: pasado CLOSE_FLUSH_MS se cierra el socket
+                HashedWheelTimer.Timeout watchdog = owner.getThreadManager().getTimer()
+                        .schedule(this::closeSocket, CLOSE_FLUSH_MS, TimeUnit.MILLISECONDS);
+                try {
+                    List<Message> batch;
+                    while (!(batch = outbound.pollBatch()).isEmpty())
+                        writeBatch(batch);
+                } catch (IOException ignored) {
+                } finally {
+                    codec.close();
+                    writeLock.unlock();
+                    watchdog.cancel();
+                }
+            }
+            // Si el escritor sigue bloqueado en un write, cerrar el socket lo libera
+            closeSocket();
+        }
+
+        /**
+         * Espera como mucho CLOSE_FLUSH_MS a que el escritor suelte el lock:
+         * si está atascado en un write a un peer que no lee, solo cerrar el
+         * socket lo desbloquea, y lo pendiente se descarta.
+         */
+        private boolean tryLockForClose() {
+            try {
+                return writeLock.tryLock(CLOSE_FLUSH_MS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+
+        private void closeSocket() {
             try {
-                if (ois != null)
-                    ois.close();
-                if (oos != null)
-                    oos.close();
                 if (socket != null)
                     socket.close();
             } catch (IOException e) {
@@ -386,16 +980,58 @@ public class TCPNetworkModule {
             return peerId;
         }
 
-        public ObjectInputStream getOis() {
-            return ois;
+        public MessageCodec getCodec() {
+            return codec;
+        }
+
+        public OutboundQueue getOutboundQueue() {
+            return outbound;
+        }
+
+        boolean isNio() {
+            return channel != null;
+        }
+
+        NioEventLoop getLoop() {
+            return loop;
+        }
+
+        SocketChannel getChannel() {
+            return channel;
         }
 
-        public ObjectOutputStream getOos() {
-            return oos;
+        BinaryMessageCodec getBinaryCodec() {
+            return (BinaryMessageCodec) codec;
+        }
+
+        ByteBuffer getReadBuffer() {
+            return readBuffer;
+        }
+
+        void setReadBuffer(ByteBuffer readBuffer) {
+            this.readBuffer = readBuffer;
         }
 
         public long getLastSeen() {
             return lastSeen;
         }
+
+        /** true solo la primera vez: connectionLost notifica una vez por conexión. */
+        boolean markLost() {
+            return lost.compareAndSet(false, true);
+        }
+
+        /** Media móvil con peso 1/8, como el SRTT de TCP. Solo la llama el lector. */
+        void recordRtt(double sampleMs) {
+            rttMs = rttMs < 0 ? sampleMs : rttMs + (sampleMs - rttMs) / 8;
+        }
+
+        public double getRttMs() {
+            return rttMs;
+        }
+
+        public int getRemoteLoad() {
+            return remoteLoad;
+        }
     }
-}
\ No newline at end of file
+}
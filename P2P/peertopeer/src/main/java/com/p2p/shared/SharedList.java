@@ -1,18 +1,66 @@
 package com.p2p.shared;
 
+import com.p2p.network.FileTransferTCP;
+
 import java.io.File;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
+/**
+ * Archivos que comparte este nodo.
+ *
+ * Cada alta/baja incrementa version y se notifica a los ChangeListener, que
+ * la anuncian como delta. epoch identifica esta ejecución del nodo: tras un
+ * reinicio la versión vuelve a empezar y los peers deben pedir un snapshot.
+ */
 public class SharedList {
     private final Set<String> sharedFiles = ConcurrentHashMap.newKeySet();
+    private final long epoch = System.currentTimeMillis();
+    private long version;
+    private final List<ChangeListener> listeners = new CopyOnWriteArrayList<>();
+
+    public interface ChangeListener {
+        void onSharedListChanged(long version, String filename, boolean added);
+    }
+
+    /** Lista completa con la versión a la que corresponde. */
+    public static class Snapshot {
+        public final long epoch;
+        public final long version;
+        public final List<String> files;
+
+        Snapshot(long epoch, long version, List<String> files) {
+            this.epoch = epoch;
+            this.version = version;
+            this.files = files;
+        }
+    }
+
+    public long getEpoch() {
+        return epoch;
+    }
+
+    public void addChangeListener(ChangeListener l) {
+        listeners.add(l);
+    }
 
     public void addFile(String filename) {
-        sharedFiles.add(filename);
+        long v;
+        synchronized (this) {
+            if (!sharedFiles.add(filename)) return;
+            v = ++version;
+        }
+        changed(v, filename, true);
     }
 
     public void removeFromList(String filename) {
-        sharedFiles.remove(filename);
+        long v;
+        synchronized (this) {
+            if (!sharedFiles.remove(filename)) return;
+            v = ++version;
+        }
+        changed(v, filename, false);
     }
 
     public boolean isShared(String filename) {
@@ -23,14 +71,32 @@ public class SharedList {
         return new ArrayList<>(sharedFiles);
     }
 
-    public void loadFromDirectory() {
+    public synchronized Snapshot snapshot() {
+        return new Snapshot(epoch, version, new ArrayList<>(sharedFiles));
+    }
+
+    /** Carga inicial: una sola versión nueva, sin deltas por archivo. */
+    public synchronized void loadFromDirectory() {
         File sharedDir = new File("shared");
         if (sharedDir.exists() && sharedDir.isDirectory()) {
+            boolean loaded = false;
             for (File file : sharedDir.listFiles()) {
-                if (file.isFile()) {
-                    sharedFiles.add(file.getName());
+                if (file.isFile() && !FileTransferTCP.isPartialTransfer(file)) {
+                    loaded |= sharedFiles.add(file.getName());
                 }
             }
+            if (loaded) version++;
         }
     }
+
+    /**
+     * Se llama sin el lock: los listeners envían a la red y con backpressure
+     * pueden bloquear segundos, lo que pararía snapshot() en el hilo de E/S
+     * que atiende PEER_DISCOVERY. Dos deltas pueden salir desordenados; el
+     * receptor ve el hueco de versión y pide el snapshot.
+     */
+    private void changed(long version, String filename, boolean added) {
+        for (ChangeListener l : listeners)
+            l.onSharedListChanged(version, filename, added);
+    }
 }
@@ -0,0 +1,96 @@
+package com.p2p.utils;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+
+/**
+ * Filtro de Bloom de cadenas, serializable como byte[] para los anuncios.
+ *
+ * mightContain() nunca da falso negativo: false significa "seguro que no".
+ * Las posiciones salen de doble hashing (h1 + i·h2) sobre un FNV-1a de 64
+ * bits del nombre en UTF-8, así que dos nodos calculan los mismos bits.
+ *
+ * add() no es seguro con lecturas concurrentes: un filtro ya visible para
+ * otros hilos no se modifica, se copia (copy) y se sustituye.
+ */
+public class BloomFilter {
+
+    public static final double DEFAULT_FPP = 0.01;
+    private static final int MIN_BITS = 512;
+    // Límites de lo que se acepta de un peer: mightContain recorre hashes bits
+    public static final int MAX_HASHES = 16;
+    public static final int MAX_BYTES = 1 << 20;
+
+    private final byte[] bits;
+    private final int hashes;
+
+    public BloomFilter(byte[] bits, int hashes) {
+        if (bits.length == 0 || bits.length > MAX_BYTES)
+            throw new IllegalArgumentException("Tamaño de filtro inválido: " + bits.length + " bytes");
+        if (hashes < 1 || hashes > MAX_HASHES)
+            throw new IllegalArgumentException("Número de hashes inválido: " + hashes);
+        this.bits   = bits;
+        this.hashes = hashes;
+    }
+
+    /** Filtro dimensionado para expected elementos con probabilidad de falso positivo fpp. */
+    public static BloomFilter forCapacity(int expected, double fpp) {
+        double ln2 = Math.log(2);
+        long m = (long) Math.ceil(-Math.max(1, expected) * Math.log(fpp) / (ln2 * ln2));
+        m = Math.max(MIN_BITS, Math.min(m, MAX_BYTES * 8L));
+        int k = (int) Math.max(1, Math.round((double) m / Math.max(1, expected) * ln2));
+        return new BloomFilter(new byte[(int) ((m + 7) / 8)], Math.min(k, MAX_HASHES));
+    }
+
+    public static BloomFilter of(Collection<String> items) {
+        BloomFilter filter = forCapacity(items.size(), DEFAULT_FPP);
+        for (String item : items) filter.add(item);
+        return filter;
+    }
+
+    public void add(String item) {
+        long h = hash(item);
+        int h1 = (int) h, h2 = (int) (h >>> 32) | 1;
+        long m = (long) bits.length * 8;
+        for (int i = 0; i < hashes; i++) {
+            long bit = Math.floorMod(h1 + (long) i * h2, m);
+            bits[(int) (bit >>> 3)] |= (byte) (1 << (bit & 7));
+        }
+    }
+
+    public boolean mightContain(String item) {
+        long h = hash(item);
+        int h1 = (int) h, h2 = (int) (h >>> 32) | 1;
+        long m = (long) bits.length * 8;
+        for (int i = 0; i < hashes; i++) {
+            long bit = Math.floorMod(h1 + (long) i * h2, m);
+            if ((bits[(int) (bit >>> 3)] & (1 << (bit & 7))) == 0) return false;
+        }
+        return true;
+    }
+
+    public BloomFilter copy() {
+        return new BloomFilter(bits.clone(), hashes);
+    }
+
+    public byte[] toBytes() {
+        return bits.clone();
+    }
+
+    public int getHashes() {
+        return hashes;
+    }
+
+    private static long hash(String item) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : item.getBytes(StandardCharsets.UTF_8)) {
+            h ^= b & 0xff;
+            h *= 0x100000001b3L;
+        }
+        // Mezcla final para repartir los bits altos y bajos
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        return h;
+    }
+}
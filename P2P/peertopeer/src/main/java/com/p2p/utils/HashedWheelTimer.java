@@ -0,0 +1,217 @@
+package com.p2p.utils;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Temporizador de rueda (hashed timing wheel) para timeouts masivos.
+ *
+ * La rueda tiene wheelSize cubetas de tickMs cada una; un timeout cae en la
+ * cubeta (deadline / tick) % wheelSize con las vueltas restantes que le
+ * falten. schedule() y cancel() son O(1): solo encolan, y el hilo de la
+ * rueda los pasa a su cubeta (o los quita) en el siguiente tick.
+ *
+ * Precisión: un tick (-Dp2p.timer.tickMs, por defecto 100 ms). Las tareas
+ * vencidas se ejecutan en el executor dado, nunca en el hilo de la rueda.
+ */
+public class HashedWheelTimer {
+
+    public static final long DEFAULT_TICK_MS    = Long.getLong("p2p.timer.tickMs", 100L);
+    public static final int  DEFAULT_WHEEL_SIZE = 512;
+    private static final int MAX_TRANSFERS_PER_TICK = 100_000;
+
+    private final long tickNanos;
+    private final Bucket[] wheel;
+    private final int mask;
+    private final Executor executor;
+    private final long startNanos;
+    private final Thread worker;
+    private volatile boolean running = true;
+    private long tick; // solo lo toca el hilo de la rueda
+
+    private final Queue<Timeout> added = new ConcurrentLinkedQueue<>();
+    private final Queue<Timeout> cancelled = new ConcurrentLinkedQueue<>();
+
+    // Métricas
+    private final AtomicInteger pending = new AtomicInteger();
+    private final LongAdder expiredCount = new LongAdder();
+    private final LongAdder cancelledCount = new LongAdder();
+
+    public HashedWheelTimer(Executor executor) {
+        this(DEFAULT_TICK_MS, DEFAULT_WHEEL_SIZE, executor);
+    }
+
+    public HashedWheelTimer(long tickMs, int wheelSize, Executor executor) {
+        int size = 1;
+        while (size < wheelSize) size <<= 1;
+        this.wheel = new Bucket[size];
+        for (int i = 0; i < size; i++) wheel[i] = new Bucket();
+        this.mask       = size - 1;
+        this.tickNanos  = TimeUnit.MILLISECONDS.toNanos(Math.max(1, tickMs));
+        this.executor   = executor;
+        this.startNanos = System.nanoTime();
+        this.worker     = new Thread(this::run, "wheel-timer");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /** Programa task tras delay; el Timeout devuelto permite cancelarla. */
+    public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        Timeout timeout = new Timeout(task, System.nanoTime() - startNanos + unit.toNanos(delay));
+        pending.incrementAndGet();
+        added.add(timeout);
+        return timeout;
+    }
+
+    public void stop() {
+        running = false;
+        worker.interrupt();
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new HashMap<>();
+        stats.put("pending", pending.get());
+        stats.put("expired", expiredCount.sum());
+        stats.put("cancelled", cancelledCount.sum());
+        stats.put("tickMs", TimeUnit.NANOSECONDS.toMillis(tickNanos));
+        stats.put("wheelSize", wheel.length);
+        return stats;
+    }
+
+    // ── Hilo de la rueda ─────────────────────────────────────────────────
+
+    private void run() {
+        while (running) {
+            long deadline = tickNanos * (tick + 1);
+            long sleepNanos = deadline - (System.nanoTime() - startNanos);
+            if (sleepNanos > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(sleepNanos);
+                } catch (InterruptedException e) {
+                    if (!running) break;
+                    continue;
+                }
+            }
+            removeCancelled();
+            transferAdded();
+            wheel[(int) (tick & mask)].expire();
+            tick++;
+        }
+    }
+
+    private void removeCancelled() {
+        Timeout t;
+        while ((t = cancelled.poll()) != null) {
+            if (t.bucket != null) t.bucket.remove(t);
+        }
+    }
+
+    private void transferAdded() {
+        for (int i = 0; i < MAX_TRANSFERS_PER_TICK; i++) {
+            Timeout t = added.poll();
+            if (t == null) break;
+            if (t.state.get() != Timeout.ST_INIT) continue; // cancelado antes de entrar
+
+            long calculated = t.deadline / tickNanos;
+            t.remainingRounds = (calculated - tick) / wheel.length;
+            long ticks = Math.max(calculated, tick); // ya vencido: en la cubeta actual
+            wheel[(int) (ticks & mask)].add(t);
+        }
+    }
+
+    // ── Timeout ──────────────────────────────────────────────────────────
+
+    public final class Timeout {
+        private static final int ST_INIT      = 0;
+        private static final int ST_CANCELLED = 1;
+        private static final int ST_EXPIRED   = 2;
+
+        private final Runnable task;
+        private final long deadline; // nanos desde startNanos
+        private final AtomicInteger state = new AtomicInteger(ST_INIT);
+        private long remainingRounds;
+        // Lista doble de la cubeta (solo el hilo de la rueda)
+        private Bucket bucket;
+        private Timeout prev, next;
+
+        private Timeout(Runnable task, long deadline) {
+            this.task     = task;
+            this.deadline = deadline;
+        }
+
+        /** Cancela si aún no venció; true si esta llamada la canceló. */
+        public boolean cancel() {
+            if (!state.compareAndSet(ST_INIT, ST_CANCELLED)) return false;
+            pending.decrementAndGet();
+            cancelledCount.increment();
+            cancelled.add(this);
+            return true;
+        }
+
+        public boolean isCancelled() {
+            return state.get() == ST_CANCELLED;
+        }
+
+        public boolean isExpired() {
+            return state.get() == ST_EXPIRED;
+        }
+
+        private void expire() {
+            if (!state.compareAndSet(ST_INIT, ST_EXPIRED)) return;
+            pending.decrementAndGet();
+            expiredCount.increment();
+            try {
+                executor.execute(task);
+            } catch (RuntimeException e) {
+                System.err.println("⚠ Timer: no se pudo ejecutar la tarea: " + e.getMessage());
+            }
+        }
+    }
+
+    private static final class Bucket {
+        private Timeout head, tail;
+
+        void add(Timeout t) {
+            t.bucket = this;
+            if (head == null) {
+                head = tail = t;
+            } else {
+                tail.next = t;
+                t.prev = tail;
+                tail = t;
+            }
+        }
+
+        void expire() {
+            Timeout t = head;
+            while (t != null) {
+                Timeout next = t.next;
+                if (t.remainingRounds <= 0) {
+                    remove(t);
+                    t.expire();
+                } else if (t.isCancelled()) {
+                    remove(t);
+                } else {
+                    t.remainingRounds--;
+                }
+                t = next;
+            }
+        }
+
+        void remove(Timeout t) {
+            if (t.bucket != this) return;
+            if (t.prev != null) t.prev.next = t.next;
+            else head = t.next;
+            if (t.next != null) t.next.prev = t.prev;
+            else tail = t.prev;
+            t.prev = t.next = null;
+            t.bucket = null;
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package com.p2p.utils;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Histograma de latencias en milisegundos con cubetas potencia de 2
+ * (0-1, 1-2, 2-4, ... hasta ~1 min; lo que exceda cae en la última).
+ * Lock-free; los percentiles se aproximan por el límite superior de la cubeta.
+ */
+public class LatencyHistogram {
+
+    private static final int BUCKETS = 17; // 2^16 ms ≈ 65 s
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder totalMs = new LongAdder();
+    private final LongAdder samples = new LongAdder();
+
+    public void record(long ms) {
+        if (ms < 0) ms = 0;
+        int bucket = ms == 0 ? 0 : 64 - Long.numberOfLeadingZeros(ms);
+        counts.incrementAndGet(Math.min(bucket, BUCKETS - 1));
+        totalMs.add(ms);
+        samples.increment();
+    }
+
+    public long getCount() {
+        return samples.sum();
+    }
+
+    /** Límite superior (ms) de la cubeta donde cae el percentil p (0..100). */
+    public long percentile(double p) {
+        long total = 0;
+        long[] snapshot = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) total += snapshot[i] = counts.get(i);
+        if (total == 0) return 0;
+
+        long rank = (long) Math.ceil(total * p / 100.0);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) return upperBound(i);
+        }
+        return upperBound(BUCKETS - 1);
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        long n = samples.sum();
+        stats.put("count", n);
+        stats.put("meanMs", n == 0 ? 0.0 : (double) totalMs.sum() / n);
+        stats.put("p50Ms", percentile(50));
+        stats.put("p90Ms", percentile(90));
+        stats.put("p99Ms", percentile(99));
+
+        Map<String, Long> buckets = new LinkedHashMap<>();
+        for (int i = 0; i < BUCKETS; i++) {
+            long c = counts.get(i);
+            if (c > 0) buckets.put("<=" + upperBound(i) + "ms", c);
+        }
+        stats.put("buckets", buckets);
+        return stats;
+    }
+
+    private static long upperBound(int bucket) {
+        return bucket == 0 ? 1 : 1L << bucket;
+    }
+}
@@ -7,10 +7,12 @@ import java.util.concurrent.ScheduledExecutorService;
 public class ThreadManager {
     private final ExecutorService workerPool;
     private final ScheduledExecutorService scheduler;
+    private final HashedWheelTimer timer; // timeouts masivos (peticiones, votos, TIME_WAIT)
 
     public ThreadManager() {
         this.workerPool = Executors.newCachedThreadPool();
         this.scheduler = Executors.newScheduledThreadPool(4);
+        this.timer = new HashedWheelTimer(workerPool);
     }
 
     public void executeTask(Runnable task) {
@@ -21,7 +23,12 @@ public class ThreadManager {
         return scheduler;
     }
 
+    public HashedWheelTimer getTimer() {
+        return timer;
+    }
+
     public void shutdown() {
+        timer.stop();
         workerPool.shutdown();
         scheduler.shutdown();
     }